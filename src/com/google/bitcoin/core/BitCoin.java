@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+
+/**
+ * An amount of currency, held as a count of nanocoins in a long. Every amount that can exist fits easily, as there
+ * will never be more than 21 million coins, so unlike BigInteger no arrays are needed to hold or add them up.<p>
+ *
+ * BitCoin objects are immutable. The BigInteger based methods elsewhere in the library remain, use
+ * {@link #toBigInteger()} and {@link #valueOf(BigInteger)} to move between the two.
+ */
+public final class BitCoin implements Comparable<BitCoin>, Serializable {
+    private static final long serialVersionUID = 4362154735719373543L;
+
+    public static final BitCoin ZERO = new BitCoin(0);
+    /** One hundredth of a coin. */
+    public static final BitCoin CENT = new BitCoin(1000000);
+    /** One coin, which is 100 million nanocoins. */
+    public static final BitCoin COIN = new BitCoin(100000000);
+
+    private final long nanocoins;
+
+    private BitCoin(long nanocoins) {
+        this.nanocoins = nanocoins;
+    }
+
+    /** Returns the given number of nanocoins as a BitCoin. */
+    public static BitCoin valueOf(long nanocoins) {
+        return nanocoins == 0 ? ZERO : new BitCoin(nanocoins);
+    }
+
+    /** Returns the given number of coins and cents as a BitCoin. */
+    public static BitCoin valueOf(int coins, int cents) {
+        assert cents < 100;
+        return valueOf(coins * COIN.nanocoins + cents * CENT.nanocoins);
+    }
+
+    /**
+     * Returns the given number of nanocoins as a BitCoin.
+     *
+     * @throws ArithmeticException if the value does not fit in a long.
+     */
+    public static BitCoin valueOf(BigInteger nanocoins) {
+        if (nanocoins.bitLength() > 63)
+            throw new ArithmeticException("Value out of range: " + nanocoins);
+        return valueOf(nanocoins.longValue());
+    }
+
+    /** Returns the amount in nanocoins. */
+    public long longValue() {
+        return nanocoins;
+    }
+
+    /** Returns the amount in nanocoins as a BigInteger, for use with the older APIs. */
+    public BigInteger toBigInteger() {
+        return BigInteger.valueOf(nanocoins);
+    }
+
+    public BitCoin add(BitCoin other) {
+        return valueOf(nanocoins + other.nanocoins);
+    }
+
+    public BitCoin subtract(BitCoin other) {
+        return valueOf(nanocoins - other.nanocoins);
+    }
+
+    /** Returns -1, 0 or 1 as this amount is negative, zero or positive. */
+    public int signum() {
+        return nanocoins < 0 ? -1 : (nanocoins == 0 ? 0 : 1);
+    }
+
+    public int compareTo(BitCoin other) {
+        return nanocoins < other.nanocoins ? -1 : (nanocoins == other.nanocoins ? 0 : 1);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof BitCoin)) return false;
+        return nanocoins == ((BitCoin) other).nanocoins;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (nanocoins ^ (nanocoins >>> 32));
+    }
+
+    /** Returns the given value in nanocoins as a 0.12 type string. */
+    public static String toFriendlyString(long nanocoins) {
+        boolean negative = nanocoins < 0;
+        if (negative)
+            nanocoins = -nanocoins;
+        long coins = nanocoins / COIN.nanocoins;
+        long cents = (nanocoins % COIN.nanocoins) / CENT.nanocoins;
+        return String.format("%s%d.%02d", negative ? "-" : "", coins, cents);
+    }
+
+    /** Returns the amount as a 0.12 type string. */
+    @Override
+    public String toString() {
+        return toFriendlyString(nanocoins);
+    }
+}
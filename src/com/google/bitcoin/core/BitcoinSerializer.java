@@ -25,6 +25,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -49,6 +50,9 @@ public class BitcoinSerializer
     
     private NetworkParameters params;
     private boolean usesChecksumming;
+    private boolean parseLazy;
+    // The packet magic in the order it appears on the wire.
+    private final byte[] magicBytes = new byte[4];
 
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>,String>();
 
@@ -62,6 +66,33 @@ public class BitcoinSerializer
         names.put(Ping.class, "ping");
         names.put(VersionAck.class, "verack");
         names.put(GetBlocksMessage.class, "getblocks");
+        names.put(GetHeadersMessage.class, "getheaders");
+        names.put(HeadersMessage.class, "headers");
+    }
+
+    // The commands we can deserialize, NULL padded as they appear in message headers so they can be matched without
+    // building a string for every message.
+    private static final int VERSION = 0, INV = 1, BLOCK = 2, GETDATA = 3, TX = 4, ADDR = 5, PING = 6, VERACK = 7,
+            HEADERS = 8;
+    private static final byte[][] commands = new byte[9][];
+
+    static {
+        commands[VERSION] = commandBytes("version");
+        commands[INV] = commandBytes("inv");
+        commands[BLOCK] = commandBytes("block");
+        commands[GETDATA] = commandBytes("getdata");
+        commands[TX] = commandBytes("tx");
+        commands[ADDR] = commandBytes("addr");
+        commands[PING] = commandBytes("ping");
+        commands[VERACK] = commandBytes("verack");
+        commands[HEADERS] = commandBytes("headers");
+    }
+
+    private static byte[] commandBytes(String name) {
+        byte[] bytes = new byte[COMMAND_LEN];
+        for (int i = 0; i < name.length(); i++)
+            bytes[i] = (byte) name.charAt(i);
+        return bytes;
     }
 
     /**
@@ -71,8 +102,22 @@ public class BitcoinSerializer
      * @param usesChecksumming set to true if checkums should be included and expected in headers
      */
     public BitcoinSerializer(NetworkParameters params, boolean usesChecksumming) {
+        this(params, usesChecksumming, false);
+    }
+
+    /**
+     * Constructs a BitcoinSerializer with the given behavior.
+     *
+     * @param params networkParams used to create Messages instances and termining packetMagic
+     * @param usesChecksumming set to true if checkums should be included and expected in headers
+     * @param parseLazy set to true to parse only the headers of blocks straight away, see
+     * {@link Block#Block(NetworkParameters, byte[], int, int, boolean)}
+     */
+    public BitcoinSerializer(NetworkParameters params, boolean usesChecksumming, boolean parseLazy) {
         this.params = params;
         this.usesChecksumming = usesChecksumming;
+        this.parseLazy = parseLazy;
+        uint32ToByteArrayBE(params.packetMagic, magicBytes, 0);
     }
 
     public void useChecksumming(boolean usesChecksumming) {
@@ -89,34 +134,45 @@ public class BitcoinSerializer
             throw new Error("BitcoinSerializer doesn't currently know how to serialize "+ message.getClass());
         }
 
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + (usesChecksumming ? 4 : 0)];
+        // The header and payload are built in one buffer of the right size, which messages that know their size
+        // serialize straight into.
+        int headerSize = getHeaderSize();
+        byte[] payload = null;
+        int size = message.getSerializedSize();
+        if (size < 0) {
+            payload = message.unsafeBitcoinSerialize();
+            size = payload.length;
+        }
+        byte[] packet = new byte[headerSize + size];
+        if (payload != null)
+            System.arraycopy(payload, 0, packet, headerSize, size);
+        else
+            message.serializeInto(packet, headerSize);
 
-        uint32ToByteArrayBE(params.packetMagic, header, 0);
+        System.arraycopy(magicBytes, 0, packet, 0, 4);
 
-        // The header array is initialized to zero by Java so we don't have to worry about
+        // The packet array is initialized to zero by Java so we don't have to worry about
         // NULL terminating the string here.
         for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+            packet[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        byte[] payload = message.bitcoinSerialize();
-
-        Utils.uint32ToByteArrayLE(payload.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(size, packet, 4 + COMMAND_LEN);
 
         if (usesChecksumming) {
-            byte[] hash = doubleDigest(payload);
-            System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+            byte[] hash = doubleDigest(packet, headerSize, size);
+            System.arraycopy(hash, 0, packet, 4 + COMMAND_LEN + 4, 4);
         }
 
-        out.write(header);
-        out.write(payload);
+        out.write(packet);
 
         if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(payload));
+            log.debug("Sending {} message: {}", name, bytesToHexString(packet));
     }
 
     /**
-     * Reads a message from the given InputStream and returns it.
+     * Reads a message from the given InputStream and returns it. The stream is read a byte at a time whilst looking
+     * for the start of a message, so it should be buffered.
      */
     public Message deserialize(InputStream in) throws ProtocolException, IOException {
         // A BitCoin protocol message has the following format.
@@ -134,109 +190,161 @@ public class BitcoinSerializer
         // Satoshi's implementation ignores garbage before the magic header bytes. We have to do the same because
         // sometimes it sends us stuff that isn't part of any message.
         seekPastMagicBytes(in);
-        // Now read in the header.
-        byte[] header = new byte[COMMAND_LEN + 4 + (usesChecksumming ? 4 : 0)];
-        int readCursor = 0;
-        while (readCursor < header.length) {
-            int bytesRead = in.read(header, readCursor, header.length - readCursor);
-            if (bytesRead == -1) {
-                // There's no more data to read.
-                throw new IOException("Socket is disconnected");
-            }
-            readCursor += bytesRead;
-        }
-
-        int cursor = 0;
+        // Now read in the header. The buffer is only 20 bytes, so it is allocated per message to keep one serializer
+        // usable from several threads.
+        byte[] headerBytes = new byte[COMMAND_LEN + 4 + 4];
+        readFully(in, headerBytes, getHeaderSize() - 4);
+        int size = readPayloadSize(headerBytes, 0);
+        // Now try to read the whole message.
+        byte[] payloadBytes = new byte[size];
+        readFully(in, payloadBytes, size);
+        return decode(headerBytes, 0, payloadBytes, 0, size);
+    }
 
-        // The command is a NULL terminated string, unless the command fills all twelve bytes
-        // in which case the termination is implicit.
-        String command;
-        int mark = cursor;
-        for (; header[cursor] != 0 && cursor - mark < COMMAND_LEN; cursor++);
-        byte[] commandBytes = new byte[cursor - mark];
-        System.arraycopy(header, mark, commandBytes, 0, cursor - mark);
-        try {
-            command = new String(commandBytes, "US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+    /**
+     * Reads a message from the given buffer, for use with non-blocking channels where the bytes of a message arrive
+     * in pieces. Garbage before the packet magic is skipped. If the buffer holds a whole message it is returned and
+     * the buffer is left positioned just after it. Otherwise null is returned and the buffer is left positioned at
+     * the start of the partial message, so the caller can compact it, read more data and try again.<p>
+     *
+     * The buffer must be backed by an array, as messages are parsed straight out of it rather than being copied first.
+     * It can be reused once this returns.
+     */
+    public Message deserialize(ByteBuffer in) throws ProtocolException {
+        byte[] buf = in.array();
+        int base = in.arrayOffset();
+        int limit = base + in.limit();
+        int start = findMagic(buf, base + in.position(), limit);
+        if (start < 0) {
+            // Skip what cannot be part of a magic, keeping any partial magic at the end.
+            in.position(Math.max(in.position(), in.limit() - 3));
+            return null;
         }
-        cursor = mark + COMMAND_LEN;
+        in.position(start - base);
+        int headerSize = getHeaderSize();
+        if (limit - start < headerSize)
+            return null;
+        int size = readPayloadSize(buf, start + 4);
+        if (limit - start - headerSize < size)
+            return null;
+        in.position(start - base + headerSize + size);
+        return decode(buf, start + 4, buf, start + headerSize, size);
+    }
 
-        int size = (int) readUint32(header, cursor);
-        cursor += 4;
+    /** Returns the size of a message header, including the packet magic, with the current checksumming setting. */
+    int getHeaderSize() {
+        return 4 + COMMAND_LEN + 4 + (usesChecksumming ? 4 : 0);
+    }
 
+    // Reads the payload size from a message header, which starts with the command.
+    private static int readPayloadSize(byte[] header, int offset) throws ProtocolException {
+        long size = readUint32(header, offset + COMMAND_LEN);
         if (size > Message.MAX_SIZE)
             throw new ProtocolException("Message size too large: " + size);
+        return (int) size;
+    }
 
-        // Old clients don't send the checksum.
-        byte[] checksum = new byte[4];
+    private Message decode(byte[] header, int headerOffset, byte[] payload, int payloadOffset, int size)
+            throws ProtocolException {
+        // Verify the checksum. Old clients don't send it.
         if (usesChecksumming) {
             // Note that the size read above includes the checksum bytes.
-            System.arraycopy(header, cursor, checksum, 0, 4);
-            cursor += 4;
-        }
-
-        // Now try to read the whole message.
-        readCursor = 0;
-        byte[] payloadBytes = new byte[size];
-        while (readCursor < payloadBytes.length - 1) {
-            int bytesRead = in.read(payloadBytes, readCursor, size - readCursor);
-            if (bytesRead == -1) {
-                throw new IOException("Socket is disconnected");
-            }
-            readCursor += bytesRead;
-        }
-
-        // Verify the checksum.
-        if (usesChecksumming) {
-            byte[] hash = doubleDigest(payloadBytes);
-            if (checksum[0] != hash[0] || checksum[1] != hash[1] ||
-                checksum[2] != hash[2] || checksum[3] != hash[3]) {
+            int checksumOffset = headerOffset + COMMAND_LEN + 4;
+            byte[] hash = doubleDigest(payload, payloadOffset, size);
+            if (header[checksumOffset] != hash[0] || header[checksumOffset + 1] != hash[1] ||
+                header[checksumOffset + 2] != hash[2] || header[checksumOffset + 3] != hash[3]) {
+                byte[] checksum = new byte[4];
+                System.arraycopy(header, checksumOffset, checksum, 0, 4);
                 throw new ProtocolException("Checksum failed to verify, actual " +
                         bytesToHexString(hash) +
                         " vs " + bytesToHexString(checksum));
             }
         }
 
+        int command = matchCommand(header, headerOffset);
         if (log.isDebugEnabled()) {
             log.debug("Received {} byte '{}' message: {}", new Object[]{
         		size,
-        		command,
-        		Utils.bytesToHexString(payloadBytes)
+        		readCommand(header, headerOffset),
+        		Utils.bytesToHexString(copyOf(payload, payloadOffset, size))
             });
         }
+        if (command < 0)
+            throw new ProtocolException("No support for deserializing message with name " +
+                    readCommand(header, headerOffset));
 
         try {
-            return makeMessage(command, payloadBytes);
+            return makeMessage(command, payload, payloadOffset, size);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    Utils.bytesToHexString(copyOf(payload, payloadOffset, size)) + "\n", e);
         }
+    }
 
+    // Returns the index of the command in the header in the commands table, or -1 if we don't know it.
+    private static int matchCommand(byte[] header, int offset) {
+        for (int i = 0; i < commands.length; i++) {
+            byte[] command = commands[i];
+            int j = 0;
+            while (j < COMMAND_LEN && header[offset + j] == command[j])
+                j++;
+            if (j == COMMAND_LEN)
+                return i;
+        }
+        return -1;
     }
 
-    private Message makeMessage(String command, byte[] payloadBytes) throws ProtocolException {
-        // We use an if ladder rather than reflection because reflection is very slow on Android.
-        if (command.equals("version")) {
-            return new VersionMessage(params, payloadBytes);
-        } else if (command.equals("inv")) {
-            return new InventoryMessage(params, payloadBytes);
-        } else if (command.equals("block")) {
-            return new Block(params, payloadBytes);
-        } else if (command.equals("getdata")) {
-            return new GetDataMessage(params, payloadBytes);
-        } else if (command.equals("tx")) {
-            return new Transaction(params, payloadBytes);
-        } else if (command.equals("addr")) {
-            return new AddressMessage(params, payloadBytes);
-        } else if (command.equals("ping")) {
-            return new Ping();
-        } else if (command.equals("verack")) {
-            return new VersionAck(params, payloadBytes);
-        } else {
-            throw new ProtocolException("No support for deserializing message with name " + command);
+    private static String readCommand(byte[] header, int offset) {
+        // The command is a NULL terminated string, unless the command fills all twelve bytes
+        // in which case the termination is implicit.
+        int length = 0;
+        while (length < COMMAND_LEN && header[offset + length] != 0)
+            length++;
+        try {
+            return new String(header, offset, length, "US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private static byte[] copyOf(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int length) throws IOException {
+        int readCursor = 0;
+        while (readCursor < length) {
+            int bytesRead = in.read(bytes, readCursor, length - readCursor);
+            if (bytesRead == -1) {
+                // There's no more data to read.
+                throw new IOException("Socket is disconnected");
+            }
+            readCursor += bytesRead;
         }
     }
 
+    private Message makeMessage(int command, byte[] payload, int offset, int length) throws ProtocolException {
+        // We use a switch rather than reflection because reflection is very slow on Android. The messages that can
+        // be large are parsed where they are, the others get a copy of their own. So do lazily parsed blocks, as they
+        // keep their bytes.
+        switch (command) {
+            case VERSION: return new VersionMessage(params, copyOf(payload, offset, length));
+            case INV: return new InventoryMessage(params, payload, offset, length);
+            case BLOCK:
+                if (parseLazy)
+                    return new Block(params, copyOf(payload, offset, length), 0, length, true);
+                return new Block(params, payload, offset, length);
+            case GETDATA: return new GetDataMessage(params, copyOf(payload, offset, length));
+            case TX: return new Transaction(params, payload, offset, length);
+            case ADDR: return new AddressMessage(params, copyOf(payload, offset, length));
+            case PING: return new Ping();
+            case VERACK: return new VersionAck(params, copyOf(payload, offset, length));
+            case HEADERS: return new HeadersMessage(params, payload, offset, length);
+            default: throw new RuntimeException("Unknown command " + command);  // Cannot happen.
+        }
+    }
     private Constructor<? extends Message> makeConstructor(Class<? extends Message> c) {
         Class<?> parTypes[] = new Class<?>[2];
         parTypes[0] = NetworkParameters.class;
@@ -251,6 +359,17 @@ public class BitcoinSerializer
     }
 
 
+    // Returns the offset of the first packet magic in the given range of the array, or -1 if there is none.
+    private int findMagic(byte[] buf, int from, int to) {
+        byte first = magicBytes[0];
+        for (int i = from; i + 4 <= to; i++) {
+            if (buf[i] == first && buf[i + 1] == magicBytes[1] && buf[i + 2] == magicBytes[2] &&
+                    buf[i + 3] == magicBytes[3])
+                return i;
+        }
+        return -1;
+    }
+
     private void seekPastMagicBytes(InputStream in) throws IOException {
         int magicCursor = 3;  // Which byte of the magic we're looking for currently.
         while (true) {
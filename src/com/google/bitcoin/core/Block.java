@@ -19,9 +19,14 @@ package com.google.bitcoin.core;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +56,17 @@ public class Block extends Message {
     // For unit testing. If not zero, use this instead of the current time.
     static long fakeClock = 0;
 
+    // Levels of the merkle tree with at least this many pairs of nodes are split across the merkle executor. Below
+    // it handing the work to other threads costs more than it saves. Not final so unit tests can lower it.
+    static int parallelMerkleThreshold = 512;
+    // The smallest number of pairs handed to one task.
+    private static final int MERKLE_CHUNK_PAIRS = 128;
+    // The executor and how many tasks a level is split into, guarded by the class. Until merkleExecutorChosen is set
+    // the default is created on first use. A null executor once chosen means every level is hashed on the caller.
+    private static ExecutorService merkleExecutor;
+    private static int merkleParallelism;
+    private static boolean merkleExecutorChosen;
+
     // Fields defined as part of the protocol format.
     private long version;
     private Sha256Hash prevBlockHash;
@@ -79,6 +95,21 @@ public class Block extends Message {
         super(params, payloadBytes, 0);
     }
 
+    /** Constructs a block from length bytes of the BitCoin wire format, starting at offset. */
+    Block(NetworkParameters params, byte[] payload, int offset, int length) throws ProtocolException {
+        super(params, payload, offset, length, NetworkParameters.PROTOCOL_VERSION);
+    }
+
+    /**
+     * Constructs a block from the BitCoin wire format. If parseLazy is set only the header is parsed now, and the
+     * transactions are parsed from the kept bytes when they are first used. Blocks that are only checked against the
+     * chain and don't involve our wallets never build their transactions at all.
+     */
+    Block(NetworkParameters params, byte[] payload, int offset, int length, boolean parseLazy)
+            throws ProtocolException {
+        super(params, payload, offset, length, NetworkParameters.PROTOCOL_VERSION, parseLazy);
+    }
+
     private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
         ois.defaultReadObject();
         // This code is not actually necessary, as transient fields are initialized to the default value which is in
@@ -86,17 +117,24 @@ public class Block extends Message {
         hash = null;
     }
 
+    @Override
+    void parseLite() throws ProtocolException {
+        parseHeader();
+        if (cursor == offset + length) {
+            // Just a header, there is nothing more to parse.
+            parsed = true;
+        } else {
+            // A block is always a whole message, so it ends where the bytes do. Until something changes the block
+            // it can be sent on as it is, without even parsing the transactions.
+            cursor = offset + length;
+            cacheBytes();
+        }
+    }
+
     void parse() throws ProtocolException {
-        version = readUint32();
-        prevBlockHash = readHash();
-        merkleRoot = readHash();
-        time = readUint32();
-        difficultyTarget = readUint32();
-        nonce = readUint32();
-        
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, 0, cursor)));
+        parseHeader();
 
-        if (cursor == bytes.length) {
+        if (cursor == offset + length) {
             // This message is just a header, it has no transactions.
             return;
         }
@@ -110,6 +148,30 @@ public class Block extends Message {
         }
     }
 
+    private void parseHeader() {
+        version = readUint32();
+        prevBlockHash = readHash();
+        merkleRoot = readHash();
+        time = readUint32();
+        difficultyTarget = readUint32();
+        nonce = readUint32();
+        
+        hash = new Sha256Hash(Utils.doubleDigest(bytes, offset, cursor - offset), 0, true);
+    }
+
+    @Override
+    protected void unCache() {
+        // A lazily parsed block must be parsed before it changes, or parsing it later would undo the change.
+        maybeParse();
+        super.unCache();
+        hash = null;
+    }
+
+    private void writeObject(ObjectOutputStream oos) throws IOException {
+        maybeParse();
+        oos.defaultWriteObject();
+    }
+
     private void writeHeader(OutputStream stream) throws IOException {
         Utils.uint32ToByteStreamLE(version, stream);
         stream.write(Utils.reverseBytes(prevBlockHash.getBytes()));
@@ -119,8 +181,51 @@ public class Block extends Message {
         Utils.uint32ToByteStreamLE(nonce, stream);
     }
     
+    private int writeHeaderInto(byte[] buf, int offset) {
+        Utils.uint32ToByteArrayLE(version, buf, offset);
+        offset = prevBlockHash.writeReversed(buf, offset + 4);
+        offset = getMerkleRoot().writeReversed(buf, offset);
+        Utils.uint32ToByteArrayLE(time, buf, offset);
+        Utils.uint32ToByteArrayLE(difficultyTarget, buf, offset + 4);
+        Utils.uint32ToByteArrayLE(nonce, buf, offset + 8);
+        return offset + 12;
+    }
+
+    @Override
+    int getSerializedSize() {
+        if (serializedBytes != null)
+            return serializedBytes.length;
+        maybeParse();
+        // We may only have enough data to write the header.
+        if (transactions == null)
+            return HEADER_SIZE;
+        int size = HEADER_SIZE + VarInt.sizeOf(transactions.size());
+        for (Transaction tx : transactions)
+            size += tx.getSerializedSize();
+        return size;
+    }
+
+    @Override
+    int serializeInto(byte[] buf, int offset) {
+        if (serializedBytes != null)
+            return super.serializeInto(buf, offset);
+        maybeParse();
+        offset = writeHeaderInto(buf, offset);
+        if (transactions == null)
+            return offset;
+        offset = VarInt.encodeInto(transactions.size(), buf, offset);
+        for (Transaction tx : transactions)
+            offset = tx.serializeInto(buf, offset);
+        return offset;
+    }
+
     @Override
     void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        if (serializedBytes != null) {
+            stream.write(serializedBytes);
+            return;
+        }
+        maybeParse();
         writeHeader(stream);
         // We may only have enough data to write the header.
         if (transactions == null) return;
@@ -134,13 +239,9 @@ public class Block extends Message {
      * Calculates the block hash by serializing the block and hashing the resulting bytes.
      */
     private Sha256Hash calculateHash() {
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] header = new byte[HEADER_SIZE];
+        writeHeaderInto(header, 0);
+        return new Sha256Hash(doubleDigest(header), 0, true);
     }
 
     /**
@@ -202,7 +303,7 @@ public class Block extends Message {
                "   time: [" + time + "] " + new Date(time * 1000).toString() + "\n" +
                "   difficulty target (nBits): " + difficultyTarget + "\n" +
                "   nonce: " + nonce + "\n");
-        if (transactions != null && transactions.size() > 0) {
+        if (getTransactions() != null && transactions.size() > 0) {
             s.append("   with ").append(transactions.size()).append(" transaction(s):\n");
             for (Transaction tx : transactions) {
                 s.append(tx.toString());
@@ -284,11 +385,84 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
+        maybeParse();
+        byte[] tree = buildMerkleTree();
+        // The root is the last node, and like all of them is in wire order.
+        return new Sha256Hash(tree, tree.length - 32, true);
+    }
+
+    /**
+     * Sets the executor used to hash the levels of large merkle trees in parallel, and how many tasks to split a level
+     * into, which should be the number of threads it has. Pass null to always hash them on the calling thread. By
+     * default a pool with one daemon thread per processor is created the first time it's needed, if there is more
+     * than one processor.
+     */
+    public static synchronized void setMerkleExecutor(ExecutorService executor, int parallelism) {
+        if (executor != null && parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least one: " + parallelism);
+        merkleExecutor = executor;
+        merkleParallelism = parallelism;
+        merkleExecutorChosen = true;
+    }
+
+    /** Goes back to the default merkle executor, for unit tests. */
+    static synchronized void resetMerkleExecutor() {
+        merkleExecutor = null;
+        merkleExecutorChosen = false;
+    }
+
+    private static synchronized ExecutorService getMerkleExecutor() {
+        if (!merkleExecutorChosen) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (threads > 1)
+                merkleExecutor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("MerkleRoot"));
+            merkleParallelism = threads;
+            merkleExecutorChosen = true;
+        }
+        return merkleExecutor;
+    }
+
+    private static synchronized int getMerkleParallelism() {
+        return merkleParallelism;
     }
 
-    private List<byte[]> buildMerkleTree() {
+    /**
+     * Hashes the given number of adjacent pairs of nodes starting at levelOffset, writing the results from
+     * nextLevel onwards. Big levels are split into chunks which are hashed on the merkle executor.
+     */
+    private static void hashMerklePairs(final byte[] tree, int levelOffset, int pairs, int nextLevel) {
+        ExecutorService executor = pairs >= parallelMerkleThreshold ? getMerkleExecutor() : null;
+        if (executor == null) {
+            Sha256.doubleDigestMany(tree, levelOffset, 64, 64, pairs, tree, nextLevel);
+            return;
+        }
+        int chunk = Math.max(MERKLE_CHUNK_PAIRS, pairs / getMerkleParallelism() + 1);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        // Keep the first chunk for this thread, which would otherwise just be waiting.
+        for (int start = chunk; start < pairs; start += chunk) {
+            final int in = levelOffset + start * 64;
+            final int out = nextLevel + start * 32;
+            final int count = Math.min(chunk, pairs - start);
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    Sha256.doubleDigestMany(tree, in, 64, 64, count, tree, out);
+                }
+            }));
+        }
+        Sha256.doubleDigestMany(tree, levelOffset, 64, 64, Math.min(chunk, pairs), tree, nextLevel);
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            // Don't leave a half written level behind, finish the work here instead.
+            Thread.currentThread().interrupt();
+            Sha256.doubleDigestMany(tree, levelOffset, 64, 64, pairs, tree, nextLevel);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private byte[] buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //            root
@@ -319,25 +493,31 @@ public class Block extends Message {
         //          2     3     4
         //         / \   / \   /  \
         //       t1 t2  t3 t4  t5 t5
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
+        //
+        // The whole tree is held in one array of 32 byte nodes in that order. Nodes are kept in wire order, which is
+        // what gets hashed, so only the leaves need flipping around.
+        int numNodes = 0;
+        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2)
+            numNodes += levelSize;
+        byte[] tree = new byte[(numNodes + 1) * 32];
         // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0;  // Offset in the list where the currently processed level starts.
+        int offset = 0;
+        for (Transaction t : transactions)
+            offset = t.getHash().writeReversed(tree, offset);
+        int levelOffset = 0;  // Offset in the array where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+            int nextLevel = levelOffset + levelSize * 32;
+            // Each pair of nodes on the level sits next to each other, so all full pairs are hashed in one batch.
+            int pairs = levelSize / 2;
+            hashMerklePairs(tree, levelOffset, pairs, nextLevel);
+            if (levelSize % 2 != 0) {
+                // The right hand node is the same as the left hand, as we don't have enough transactions.
+                int left = levelOffset + (levelSize - 1) * 32;
+                Sha256.doubleDigestTwoBuffers(tree, left, 32, tree, left, 32, tree, nextLevel + pairs * 32);
             }
             // Move to the next level.
-            levelOffset += levelSize;
+            levelOffset = nextLevel;
         }
         return tree;
     }
@@ -380,6 +560,7 @@ public class Block extends Message {
         // an invalid block, but if we didn't validate this then an untrusted man-in-the-middle could obtain the next
         // valid block from the network and simply replace the transactions in it with their own fictional
         // transactions that reference spent or non-existant inputs.
+        maybeParse();
         assert transactions.size() > 0;
         checkTransactions();
         checkMerkleRoot();
@@ -414,19 +595,28 @@ public class Block extends Message {
 
     /** Exists only for unit testing. */
     void setMerkleRoot(Sha256Hash value) {
+        unCache();
         merkleRoot = value;
-        hash = null;
     }
 
     /** Adds a transaction to this block. */
     void addTransaction(Transaction t) {
+        unCache();
         if (transactions == null) {
             transactions = new ArrayList<Transaction>();
         }
         transactions.add(t);
         // Force a recalculation next time the values are needed.
         merkleRoot = null;
-        hash = null;
+    }
+
+    /**
+     * Returns the transactions in the block, or null if it holds only the header. A lazily parsed block parses them
+     * now.
+     */
+    List<Transaction> getTransactions() {
+        maybeParse();
+        return transactions;
     }
 
     /** Returns the version of the block data structure as defined by the BitCoin protocol. */
@@ -440,8 +630,8 @@ public class Block extends Message {
     }
 
     void setPrevBlockHash(Sha256Hash prevBlockHash) {
+        unCache();
         this.prevBlockHash = prevBlockHash;
-        this.hash = null;
     }
 
     /**
@@ -453,8 +643,8 @@ public class Block extends Message {
     }
 
     void setTime(long time) {
+        unCache();
         this.time = time;
-        this.hash = null;
     }
 
     /**
@@ -467,8 +657,8 @@ public class Block extends Message {
     }
 
     void setDifficultyTarget(long compactForm) {
+        unCache();
         this.difficultyTarget = compactForm;
-        this.hash = null;
     }
 
     /**
@@ -480,8 +670,8 @@ public class Block extends Message {
     }
 
     void setNonce(long nonce) {
+        unCache();
         this.nonce = nonce;
-        this.hash = null;
     }
 
     /////////////////////////////////////////////////////////////////////////////////////////////////
@@ -18,6 +18,7 @@ package com.google.bitcoin.core;
 
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
@@ -65,11 +66,45 @@ public class BlockChain {
     protected StoredBlock chainHead;
 
     protected final NetworkParameters params;
+    // Copied on write so blocks can be scanned for relevant transactions on other threads.
     protected final List<Wallet> wallets;
 
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
-    private final ArrayList<Block> unconnectedBlocks = new ArrayList<Block>();
+    // were downloading the block chain. They are indexed by the block they are waiting for.
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool();
+
+    // Used by addAsync. Blocks are verified in parallel by the verifier and then connected in order by the connector,
+    // which has a single thread. Both are created on first use. They are guarded by executorLock rather than the
+    // chain itself so queueing a block never waits for a block that is being connected.
+    private final Object executorLock = new Object();
+    private ExecutorService verifier;
+    private ExecutorService connector;
+    // Bounds how many blocks addAsync holds on to at once, each permit is taken when a block is queued and given back
+    // once it has been connected. Replaced by setMaxPendingBlocks, blocks already queued give back to the old one.
+    private Semaphore pendingBlocks = new Semaphore(DEFAULT_MAX_PENDING_BLOCKS);
+    private static final int DEFAULT_MAX_PENDING_BLOCKS = 32;
+
+    // Whilst addAll is connecting a batch, new blocks, the chain head and the transactions for the wallets are held
+    // here and written out together when the batch ends. They are flushed early if the chain needs to be examined
+    // through the store, for re-organizes and difficulty transitions. All null outside of a batch.
+    private List<StoredBlock> batchedBlocks;
+    private Map<Sha256Hash, StoredBlock> batchedBlocksByHash;
+    private List<BatchedTransactions> batchedTransactions;
+    private boolean batchedChainHead;
+
+    // The locator for the chain head it was built for, see getBlockLocator.
+    private List<Sha256Hash> blockLocator;
+    private StoredBlock blockLocatorHead;
+
+    private static class BatchedTransactions {
+        final StoredBlock block;
+        final HashMap<Wallet, List<Transaction>> transactions;
+
+        BatchedTransactions(StoredBlock block, HashMap<Wallet, List<Transaction>> transactions) {
+            this.block = block;
+            this.transactions = transactions;
+        }
+    }
 
     /**
      * Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -102,7 +137,7 @@ public class BlockChain {
         chainHead = blockStore.getChainHead();
         log.info("chain head is:\n{}", chainHead.getHeader());
         this.params = params;
-        this.wallets = new ArrayList<Wallet>(wallets);
+        this.wallets = new CopyOnWriteArrayList<Wallet>(wallets);
     }
 
     /**
@@ -119,7 +154,7 @@ public class BlockChain {
      * exception is thrown. If the block is OK but cannot be connected to the chain at this time, returns false.
      * If the block can be connected to the chain, returns true.
      */
-    public synchronized boolean add(Block block) throws VerificationException, ScriptException {
+    public boolean add(Block block) throws VerificationException, ScriptException {
         try {
             return add(block, true);
         } catch (BlockStoreException e) {
@@ -128,32 +163,212 @@ public class BlockChain {
         }
     }
 
+    /**
+     * Sets how many threads {@link #addAsync(Block)} uses to verify blocks. By default there is one per processor.
+     * Blocks that are already queued are verified by the old threads.
+     */
+    public void setVerificationThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least one verification thread: " + threads);
+        synchronized (executorLock) {
+            if (verifier != null)
+                verifier.shutdown();
+            verifier = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("BlockChain-verify"));
+            if (connector == null)
+                connector = Executors.newSingleThreadExecutor(new DaemonThreadFactory("BlockChain-connect"));
+        }
+    }
+
+    /**
+     * Sets how many blocks {@link #addAsync(Block)} will hold on to that have not been connected yet. Once that many
+     * are waiting, addAsync blocks until one of them is done. The default is 32.
+     */
+    public void setMaxPendingBlocks(int maxBlocks) {
+        if (maxBlocks < 1)
+            throw new IllegalArgumentException("Need room for at least one pending block: " + maxBlocks);
+        synchronized (executorLock) {
+            pendingBlocks = new Semaphore(maxBlocks);
+        }
+    }
+
+    /**
+     * Adds the block to the chain in the background. Proof of work, the merkle root and the scan for transactions
+     * relevant to our wallets are checked on a pool of worker threads, so several blocks can be verified at once.
+     * Connecting them to the chain is still done one block at a time, in the order they were passed to this method.
+     * <p>
+     *
+     * At most {@link #setMaxPendingBlocks(int)} blocks are queued at once. When that many are waiting this method
+     * blocks until the oldest has been connected, so a caller handing over blocks faster than the chain can take them
+     * is slowed down to its pace rather than queueing them all in memory.<p>
+     *
+     * The returned future gives the same answer as {@link #add(Block)} once the block was connected, or throws an
+     * ExecutionException wrapping the reason it could not be.
+     *
+     * @throws InterruptedException if the thread was interrupted whilst waiting for room in the queue.
+     */
+    public Future<Boolean> addAsync(final Block block) throws InterruptedException {
+        final Semaphore pending;
+        synchronized (executorLock) {
+            pending = pendingBlocks;
+        }
+        // Wait for room outside the lock, the connector doesn't need it to make some.
+        pending.acquire();
+        // Only the hand off to the executors is done under the lock, both the verifying and connecting are not.
+        synchronized (executorLock) {
+            if (verifier == null)
+                setVerificationThreads(Runtime.getRuntime().availableProcessors());
+            final Future<HashMap<Wallet, List<Transaction>>> verified =
+                    verifier.submit(new Callable<HashMap<Wallet, List<Transaction>>>() {
+                public HashMap<Wallet, List<Transaction>> call() throws Exception {
+                    return verify(block);
+                }
+            });
+            return connector.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    try {
+                        HashMap<Wallet, List<Transaction>> walletToTxMap;
+                        try {
+                            walletToTxMap = verified.get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof Exception)
+                                throw (Exception) e.getCause();
+                            throw e;
+                        }
+                        return connect(block, walletToTxMap, true);
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds a run of blocks to the chain as one unit. Every block is verified before any is connected, so a block
+     * that fails verification rejects the whole batch. The blocks are then connected in order under a single lock,
+     * stored with one write, the chain head is written once and each wallet is handed its transactions from the
+     * whole batch in one call, so its event listeners are notified once per batch rather than once per transaction
+     * (a re-organize or difficulty transition in the middle of the batch splits it). This is much cheaper than
+     * calling {@link #add(Block)} for each block when catching up with the network.<p>
+     *
+     * Blocks that do not connect are held on to like they are by add. Returns how many of the blocks connected.
+     */
+    public int addAll(List<Block> blocks) throws VerificationException, ScriptException {
+        List<HashMap<Wallet, List<Transaction>>> verified = new ArrayList<HashMap<Wallet, List<Transaction>>>();
+        for (Block block : blocks)
+            verified.add(verify(block));
+        try {
+            return connectAll(blocks, verified);
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized int connectAll(List<Block> blocks, List<HashMap<Wallet, List<Transaction>>> verified)
+            throws BlockStoreException, VerificationException, ScriptException {
+        batchedBlocks = new ArrayList<StoredBlock>();
+        batchedBlocksByHash = new HashMap<Sha256Hash, StoredBlock>();
+        batchedTransactions = new ArrayList<BatchedTransactions>();
+        int connected = 0;
+        try {
+            for (int i = 0; i < blocks.size(); i++) {
+                if (connect(blocks.get(i), verified.get(i), true))
+                    connected++;
+            }
+        } finally {
+            // Whatever connected before a failure stays connected.
+            try {
+                flushBatch();
+            } finally {
+                batchedBlocks = null;
+                batchedBlocksByHash = null;
+                batchedTransactions = null;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * Writes out whatever the current batch is holding back. Does nothing outside of a batch.
+     */
+    private void flushBatch() throws BlockStoreException, VerificationException {
+        if (batchedBlocks == null)
+            return;
+        if (batchedBlocks.size() > 0) {
+            blockStore.putAll(batchedBlocks);
+            batchedBlocks.clear();
+            batchedBlocksByHash.clear();
+        }
+        if (batchedChainHead) {
+            blockStore.setChainHead(chainHead);
+            batchedChainHead = false;
+        }
+        if (batchedTransactions.size() > 0) {
+            // Hand each wallet everything from the batch in one call, so its listeners hear about it once.
+            for (Wallet wallet : wallets) {
+                List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+                List<List<Transaction>> txns = new ArrayList<List<Transaction>>();
+                for (BatchedTransactions batched : batchedTransactions) {
+                    List<Transaction> walletTxns = batched.transactions.get(wallet);
+                    if (walletTxns == null)
+                        continue;
+                    blocks.add(batched.block);
+                    txns.add(walletTxns);
+                }
+                if (blocks.size() > 0)
+                    wallet.receiveAll(blocks, txns);
+            }
+            batchedTransactions.clear();
+        }
+    }
+
+    private StoredBlock getStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        if (batchedBlocksByHash != null) {
+            StoredBlock block = batchedBlocksByHash.get(hash);
+            if (block != null)
+                return block;
+        }
+        return blockStore.get(hash);
+    }
+
+    private void putStoredBlock(StoredBlock block) throws BlockStoreException {
+        if (batchedBlocks != null) {
+            batchedBlocks.add(block);
+            batchedBlocksByHash.put(block.getHeader().getHash(), block);
+        } else {
+            blockStore.put(block);
+        }
+    }
+
     // Stat counters.
     private long statsLastTime = System.currentTimeMillis();
     private long statsBlocksAdded;
 
-    private synchronized boolean add(Block block, boolean tryConnecting)
+    private boolean add(Block block, boolean tryConnecting)
             throws BlockStoreException, VerificationException, ScriptException {
-        if (System.currentTimeMillis() - statsLastTime > 1000) {
-            // More than a second passed since last stats logging.
-            log.info("{} blocks per second", statsBlocksAdded);
-            statsLastTime = System.currentTimeMillis();
-            statsBlocksAdded = 0;
-        }
-        // We check only the chain head for double adds here to avoid potentially expensive block chain misses.
-        if (block.equals(chainHead.getHeader())) {
-            // Duplicate add of the block at the top of the chain, can be a natural artifact of the download process.
-            return true;
-        }
+        return connect(block, verify(block), tryConnecting);
+    }
 
+    /**
+     * Checks the parts of the block that do not depend on the rest of the chain, and returns the transactions each
+     * wallet is interested in. This does not touch the chain, so it does not need the lock and can run on any thread.
+     */
+    private HashMap<Wallet, List<Transaction>> verify(Block block) throws VerificationException {
         // Does this block contain any transactions we might care about? Check this up front before verifying the
         // blocks validity so we can skip the merkle root verification if the contents aren't interesting. This saves
         // a lot of time for big blocks.
         boolean contentsImportant = false;
-        HashMap<Wallet, List<Transaction>> walletToTxMap = new HashMap<Wallet, List<Transaction>>();;
-        if (block.transactions != null) {
-            scanTransactions(block, walletToTxMap);
-            contentsImportant = walletToTxMap.size() > 0;
+        HashMap<Wallet, List<Transaction>> walletToTxMap = new HashMap<Wallet, List<Transaction>>();
+        // Without wallets there is nothing to look for, which spares a lazily parsed block building its transactions.
+        try {
+            if (!wallets.isEmpty() && block.getTransactions() != null) {
+                scanTransactions(block, walletToTxMap);
+                contentsImportant = walletToTxMap.size() > 0;
+            }
+        } catch (LazyParseException e) {
+            throw new VerificationException("Block " + block.getHashAsString() + " has invalid transactions: " +
+                    e.getCause());
         }
 
         // Prove the block is internally valid: hash is lower than target, etc. This only checks the block contents
@@ -169,16 +384,36 @@ public class BlockChain {
             log.error(block.getHashAsString());
             throw e;
         }
+        return walletToTxMap;
+    }
+
+    /**
+     * Links an already verified block into the chain, or puts it to one side if its parent is not known yet.
+     */
+    private synchronized boolean connect(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap,
+                                         boolean tryConnecting)
+            throws BlockStoreException, VerificationException, ScriptException {
+        if (System.currentTimeMillis() - statsLastTime > 1000) {
+            // More than a second passed since last stats logging.
+            log.info("{} blocks per second", statsBlocksAdded);
+            statsLastTime = System.currentTimeMillis();
+            statsBlocksAdded = 0;
+        }
+        // We check only the chain head for double adds here to avoid potentially expensive block chain misses.
+        if (block.equals(chainHead.getHeader())) {
+            // Duplicate add of the block at the top of the chain, can be a natural artifact of the download process.
+            return true;
+        }
 
         // Try linking it to a place in the currently known blocks.
-        StoredBlock storedPrev = blockStore.get(block.getPrevBlockHash());
+        StoredBlock storedPrev = getStoredBlock(block.getPrevBlockHash());
 
         if (storedPrev == null) {
             // We can't find the previous block. Probably we are still in the process of downloading the chain and a
             // block was solved whilst we were doing it. We put it to one side and try to connect it later when we
             // have more blocks.
             log.warn("Block does not connect: {}", block.getHashAsString());
-            unconnectedBlocks.add(block);
+            orphanBlocks.add(block);
             return false;
         } else {
             // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -187,12 +422,12 @@ public class BlockChain {
             // out of scope we will reclaim the used memory.
             StoredBlock newStoredBlock = storedPrev.build(block);
             checkDifficultyTransitions(storedPrev, newStoredBlock);
-            blockStore.put(newStoredBlock);
+            putStoredBlock(newStoredBlock);
             connectBlock(newStoredBlock, storedPrev, walletToTxMap);
         }
 
         if (tryConnecting)
-            tryConnectingUnconnected();
+            tryConnectingUnconnected(block.getHash());
 
         statsBlocksAdded++;
         return true;
@@ -205,10 +440,16 @@ public class BlockChain {
             // This block connects to the best known block, it is a normal continuation of the system.
             setChainHead(newStoredBlock);
             log.debug("Chain is now {} blocks high", chainHead.getHeight());
-            if (newTransactions != null)
-                sendTransactionsToWallet(newStoredBlock, NewBlockType.BEST_CHAIN, newTransactions);
+            if (newTransactions != null && newTransactions.size() > 0) {
+                if (batchedTransactions != null)
+                    batchedTransactions.add(new BatchedTransactions(newStoredBlock, newTransactions));
+                else
+                    sendTransactionsToWallet(newStoredBlock, NewBlockType.BEST_CHAIN, newTransactions);
+            }
         } else {
             // This block connects to somewhere other than the top of the best known chain. We treat these differently.
+            // The rest of the chain is examined through the store, so it must be up to date.
+            flushBatch();
             //
             // Note that we send the transactions to the wallet FIRST, even if we're about to re-organize this block
             // to become the new best chain head. This simplifies handling of the re-org in the Wallet class.
@@ -223,8 +464,8 @@ public class BlockChain {
                           splitPointHash, newStoredBlock);
             }
 
-            // We may not have any transactions if we received only a header. That never happens today but will in
-            // future when getheaders is used as an optimization.
+            // We may not have any transactions if we received only a header, which is what the Peer downloads for
+            // blocks older than its fast catchup time.
             if (newTransactions != null) {
                 sendTransactionsToWallet(newStoredBlock, NewBlockType.SIDE_CHAIN, newTransactions);
             }
@@ -266,12 +507,18 @@ public class BlockChain {
     private List<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower) throws BlockStoreException {
         assert higher.getHeight() > lower.getHeight();
         LinkedList<StoredBlock> results = new LinkedList<StoredBlock>();
+        // Blocks on the best chain can be read straight out of the height index, the rest must be followed back.
+        boolean indexed = isOnIndexedChain(higher);
         StoredBlock cursor = higher;
-        while (true) {
-            results.add(cursor);
-            cursor = cursor.getPrev(blockStore);
+        for (int height = higher.getHeight(); height > lower.getHeight(); height--) {
+            if (indexed && height < higher.getHeight())
+                cursor = blockStore.getByHeight(height);
             assert cursor != null : "Ran off the end of the chain";
-            if (cursor.equals(lower)) break;
+            results.add(cursor);
+            if (!indexed) {
+                cursor = cursor.getPrev(blockStore);
+                indexed = cursor != null && isOnIndexedChain(cursor);
+            }
         }
         return results;
     }
@@ -281,26 +528,71 @@ public class BlockChain {
      * found (ie they are part of the same chain).
      */
     private StoredBlock findSplit(StoredBlock newChainHead, StoredBlock chainHead) throws BlockStoreException {
-        StoredBlock currentChainCursor = chainHead;
-        StoredBlock newChainCursor = newChainHead;
         // Loop until we find the block both chains have in common. Example:
         //
         //    A -> B -> C -> D
         //         \--> E -> F -> G
         //
         // findSplit will return block B. chainHead = D and newChainHead = G.
+        //
+        // Start both cursors at the same height, then step back until they meet. Once one of them is on the best
+        // chain the split is simply the first block on the best chain reached from the other one.
+        int height = Math.min(chainHead.getHeight(), newChainHead.getHeight());
+        StoredBlock currentChainCursor = getAncestor(chainHead, height);
+        StoredBlock newChainCursor = getAncestor(newChainHead, height);
+        assert currentChainCursor != null && newChainCursor != null : "Attempt to follow an orphan chain";
         while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(blockStore);
-                assert currentChainCursor != null : "Attempt to follow an orphan chain";
-            } else {
-                newChainCursor = newChainCursor.getPrev(blockStore);
-                assert newChainCursor != null : "Attempt to follow an orphan chain";
-            }
+            if (isOnIndexedChain(currentChainCursor))
+                return getFirstIndexedAncestor(newChainCursor);
+            if (isOnIndexedChain(newChainCursor))
+                return getFirstIndexedAncestor(currentChainCursor);
+            currentChainCursor = currentChainCursor.getPrev(blockStore);
+            newChainCursor = newChainCursor.getPrev(blockStore);
+            assert currentChainCursor != null && newChainCursor != null : "Attempt to follow an orphan chain";
         }
         return currentChainCursor;
     }
 
+    /**
+     * Returns true if the block is the one the block store has indexed at its height, ie it is on the best chain.
+     * All its ancestors are then in the index too.
+     */
+    private boolean isOnIndexedChain(StoredBlock block) throws BlockStoreException {
+        StoredBlock indexed = blockStore.getByHeight(block.getHeight());
+        return indexed != null && indexed.getHeader().getHash().equals(block.getHeader().getHash());
+    }
+
+    /**
+     * Follows the chain back from the given block until it reaches a block on the best chain, and returns that.
+     */
+    private StoredBlock getFirstIndexedAncestor(StoredBlock block) throws BlockStoreException {
+        StoredBlock cursor = block;
+        while (cursor != null && !isOnIndexedChain(cursor))
+            cursor = cursor.getPrev(blockStore);
+        assert cursor != null : "Attempt to follow an orphan chain";
+        return cursor;
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, or the block itself if it is already at that
+     * height. Returns null if the chain cannot be followed that far back.<p>
+     *
+     * Blocks are followed back one at a time only until the chain joins the best chain. From there the block store
+     * height index is used, so for blocks on the best chain this costs a couple of lookups however far back the
+     * ancestor is.
+     */
+    StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (height < 0)
+            return null;
+        StoredBlock cursor = block;
+        while (cursor != null && cursor.getHeight() > height) {
+            if (isOnIndexedChain(cursor))
+                return blockStore.getByHeight(height);
+            cursor = cursor.getPrev(blockStore);
+        }
+        return cursor;
+    }
+
     enum NewBlockType {
         BEST_CHAIN,
         SIDE_CHAIN
@@ -308,54 +600,68 @@ public class BlockChain {
 
     private void sendTransactionsToWallet(StoredBlock block, NewBlockType blockType,
                                           HashMap<Wallet, List<Transaction>> newTransactions) throws VerificationException {
-        for (Map.Entry<Wallet, List<Transaction>> entry : newTransactions.entrySet()) {
-            try {
-                List<Transaction> txns = entry.getValue();
-                for (Transaction tx : txns) {
-                    entry.getKey().receive(tx, block, blockType);
-                }
-            } catch (ScriptException e) {
-                // We don't want scripts we don't understand to break the block chain so just note that this tx was
-                // not scanned here and continue.
-                log.warn("Failed to parse a script: " + e.toString());
+        for (Map.Entry<Wallet, List<Transaction>> entry : newTransactions.entrySet())
+            sendTransactionsToWallet(entry.getKey(), block, blockType, entry.getValue());
+    }
+
+    private void sendTransactionsToWallet(Wallet wallet, StoredBlock block, NewBlockType blockType,
+                                          List<Transaction> txns) throws VerificationException {
+        try {
+            for (Transaction tx : txns) {
+                wallet.receive(tx, block, blockType);
             }
+        } catch (ScriptException e) {
+            // We don't want scripts we don't understand to break the block chain so just note that this tx was
+            // not scanned here and continue.
+            log.warn("Failed to parse a script: " + e.toString());
         }
     }
 
     private void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-        blockStore.setChainHead(chainHead);
+        if (batchedBlocks != null)
+            batchedChainHead = true;
+        else
+            blockStore.setChainHead(chainHead);
         this.chainHead = chainHead;
     }
 
     /**
-     * For each block in unconnectedBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects any orphan blocks that were waiting for the given block, then any that were waiting for those, and so
+     * on.
      */
-    private void tryConnectingUnconnected() throws VerificationException, ScriptException, BlockStoreException {
-        // For each block in our unconnected list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<Block> iter = unconnectedBlocks.iterator();
-            while (iter.hasNext()) {
-                Block block = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = blockStore.get(block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    continue;
+    private void tryConnectingUnconnected(Sha256Hash connected)
+            throws VerificationException, ScriptException, BlockStoreException {
+        // Each block we manage to connect may release children of its own, so work through them as a queue rather
+        // than recursing, which could go very deep when connecting huge chains.
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(connected);
+        int blocksConnected = 0;
+        while (!parents.isEmpty()) {
+            List<Block> children = new ArrayList<Block>(orphanBlocks.removeChildren(parents.removeFirst()));
+            for (int i = 0; i < children.size(); i++) {
+                Block block = children.get(i);
+                try {
+                    if (add(block, false)) {
+                        parents.add(block.getHash());
+                        blocksConnected++;
+                    }
+                } catch (VerificationException e) {
+                    // A bad orphan says nothing about the block that released it or about its siblings, so drop it
+                    // and carry on.
+                    log.warn("Dropping orphan block {}: {}", block.getHashAsString(), e.getMessage());
+                } catch (ScriptException e) {
+                    log.warn("Dropping orphan block {}: {}", block.getHashAsString(), e.getMessage());
+                } catch (BlockStoreException e) {
+                    // Put back the blocks we didn't get to so they can still be connected later.
+                    for (Block unprocessed : children.subList(i, children.size()))
+                        orphanBlocks.add(unprocessed);
+                    throw e;
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(block, false);
-                iter.remove();
-                blocksConnectedThisRound++;
-            }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} floating blocks.", blocksConnectedThisRound);
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} floating blocks.", blocksConnected);
+        }
     }
 
     /**
@@ -375,17 +681,15 @@ public class BlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find the block at the start of the interval. This is normally on the best chain, where the height
+        // index takes us straight to it.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.interval - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        flushBatch();
+        StoredBlock cursor = getAncestor(storedPrev, storedPrev.getHeight() - (params.interval - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         log.debug("Difficulty transition traversal took {}msec", System.currentTimeMillis() - now);
 
@@ -424,7 +728,7 @@ public class BlockChain {
      */
     private void scanTransactions(Block block, HashMap<Wallet, List<Transaction>> walletToTxMap)
             throws VerificationException {
-        for (Transaction tx : block.transactions) {
+        for (Transaction tx : block.getTransactions()) {
             try {
                 for (Wallet wallet : wallets) {
                     boolean shouldReceive = false;
@@ -474,12 +778,63 @@ public class BlockChain {
     }
 
 
+    /**
+     * Returns a block locator for the best chain. That is the hashes of the ten blocks at the top of the chain,
+     * followed by blocks at exponentially increasing distances further back, ending with the genesis block. Sending
+     * it in a getblocks or getheaders lets the peer find the most recent block we have in common even if we ended up
+     * on a fork, so only the blocks after that are downloaded again.<p>
+     *
+     * The blocks are found through the block store height index, so building the locator takes a few dozen lookups
+     * however long the chain is. It is kept until the chain head changes.
+     */
+    public synchronized List<Sha256Hash> getBlockLocator() {
+        if (blockLocator != null && blockLocatorHead.equals(chainHead))
+            return blockLocator;
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>();
+        try {
+            int step = 1;
+            StoredBlock cursor = chainHead;
+            while (cursor != null) {
+                locator.add(cursor.getHeader().getHash());
+                if (cursor.getHeight() == 0)
+                    break;
+                if (locator.size() >= 10)
+                    step *= 2;
+                cursor = getAncestor(cursor, Math.max(cursor.getHeight() - step, 0));
+            }
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        }
+        // The chain should always lead back to the genesis block, but make sure the peer gets it regardless.
+        Sha256Hash genesisHash = params.genesisBlock.getHash();
+        if (!locator.get(locator.size() - 1).equals(genesisHash))
+            locator.add(genesisHash);
+        blockLocator = Collections.unmodifiableList(locator);
+        blockLocatorHead = chainHead;
+        return blockLocator;
+    }
+
     /**
      * Returns the most recent unconnected block or null if there are none. This will all have to change.
      */
     public synchronized Block getUnconnectedBlock() {
-        if (unconnectedBlocks.size() == 0)
-            return null;
-        return unconnectedBlocks.get(unconnectedBlocks.size() - 1);
+        return orphanBlocks.getNewest();
+    }
+
+    /**
+     * Sets how many blocks that do not yet connect to the chain are held on to, waiting for their parents. When the
+     * limit is reached the oldest are thrown away. The default is 1000.
+     */
+    public synchronized void setMaxOrphanBlocks(int maxBlocks) {
+        orphanBlocks.setMaxBlocks(maxBlocks);
+    }
+
+    /**
+     * Sets the maximum total serialized size of the blocks that do not yet connect to the chain. When the limit is
+     * reached the oldest are thrown away. The default is 32mb.
+     */
+    public synchronized void setMaxOrphanBytes(long maxBytes) {
+        orphanBlocks.setMaxBytes(maxBytes);
     }
 }
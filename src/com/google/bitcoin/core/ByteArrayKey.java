@@ -0,0 +1,44 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a byte array so that equals and hashCode compare its contents, allowing it to be used as the key of a map.
+ * The hash code is worked out once. The array must not be changed after it has been wrapped.
+ */
+final class ByteArrayKey {
+    private final byte[] bytes;
+    private final int hash;
+
+    ByteArrayKey(byte[] bytes) {
+        this.bytes = bytes;
+        hash = Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ByteArrayKey && Arrays.equals(bytes, ((ByteArrayKey) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
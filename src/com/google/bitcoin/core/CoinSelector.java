@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.List;
+
+/**
+ * Decides which of the wallet's spendable outputs pay for a send. {@link Wallet#createSend} asks the selector of the
+ * wallet, which can be changed with {@link Wallet#setCoinSelector(CoinSelector)}. The built in strategies are
+ * {@link LargestFirstCoinSelector}, which is the default, {@link OldestFirstCoinSelector} and
+ * {@link ExactMatchCoinSelector}.<p>
+ *
+ * Selectors are called with the wallet locked and must not hold on to the outputs they are given.
+ */
+public interface CoinSelector {
+    /**
+     * Returns outputs worth at least target nanocoins, or null if that cannot be done. The wallet sends anything
+     * above the target back to itself as change. It only asks when the outputs add up to enough, so target is never
+     * more than {@link SpendableOutputs#getTotal()}.
+     */
+    List<TransactionOutput> select(long target, SpendableOutputs outputs);
+}
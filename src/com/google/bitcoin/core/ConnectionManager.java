@@ -0,0 +1,530 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ConnectionManager talks to many peers over non-blocking sockets using a few I/O threads, rather than the thread
+ * per connection that {@link Peer#run()} needs. Each I/O thread owns a selector and the connections assigned to it.
+ * It reads whatever bytes have arrived, splits them into messages with
+ * {@link BitcoinSerializer#deserialize(java.nio.ByteBuffer)}, and writes queued messages as the sockets accept them.<p>
+ *
+ * Once the version handshake is done, received messages are given to the {@link Peer} on a small pool of handler
+ * threads. Each peer gets its messages one at a time and in order, and passes the work that waits on the block chain
+ * to a thread of its own, so the handler threads are not tied up by peers that are downloading the chain. If a peer
+ * falls behind, because it has too many blocks waiting for the chain or too many messages waiting for a handler,
+ * reading from its socket is paused until it catches up.<p>
+ *
+ * Call {@link #start()} before connecting peers and {@link #stop()} to close every connection and end the threads.
+ */
+public class ConnectionManager {
+    private static final Logger log = LoggerFactory.getLogger(ConnectionManager.class);
+
+    private static final int DEFAULT_IO_THREADS = 2;
+    private static final int DEFAULT_HANDLER_THREADS = 4;
+    // How long the connection and version handshake may take.
+    private static final int CONNECT_TIMEOUT_MILLIS = 60000;
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+    // Reading from a peer stops when this many of its messages are waiting to be handled.
+    private static final int MAX_QUEUED_MESSAGES = 100;
+    // How many messages of one peer a handler thread deals with before giving the other peers a turn.
+    private static final int MESSAGES_PER_TURN = 16;
+
+    /**
+     * Receives notifications about the connections made by {@link ConnectionManager#connect}. The calls for one
+     * connection are made one at a time on the handler threads.
+     */
+    public interface ConnectionListener {
+        /** Called once the version handshake is done and the peer can be used. */
+        void onConnected(Peer peer);
+
+        /**
+         * Called when the connection is closed or could not be made. The cause is null if it was closed by calling
+         * {@link Peer#disconnect()} or {@link ConnectionManager#stop()}.
+         */
+        void onDisconnected(Peer peer, Exception cause);
+    }
+
+    private final NetworkParameters params;
+    private final int numIoThreads;
+    private final int numHandlerThreads;
+    private final AtomicInteger nextIoThread = new AtomicInteger();
+    // Both set whilst running, guarded by this object.
+    private IoThread[] ioThreads;
+    private ExecutorService handlers;
+
+    /**
+     * Creates a connection manager with two I/O threads and four threads for handling messages.
+     */
+    public ConnectionManager(NetworkParameters params) {
+        this(params, DEFAULT_IO_THREADS, DEFAULT_HANDLER_THREADS);
+    }
+
+    /**
+     * Creates a connection manager with the given number of threads for network I/O and for handling messages.
+     */
+    public ConnectionManager(NetworkParameters params, int ioThreads, int handlerThreads) {
+        if (ioThreads < 1 || handlerThreads < 1)
+            throw new IllegalArgumentException("Need at least one thread of each kind");
+        this.params = params;
+        this.numIoThreads = ioThreads;
+        this.numHandlerThreads = handlerThreads;
+    }
+
+    /**
+     * Starts the I/O and handler threads.
+     */
+    public synchronized void start() throws IOException {
+        if (ioThreads != null)
+            throw new IllegalStateException("Already started");
+        handlers = Executors.newFixedThreadPool(numHandlerThreads,
+                new DaemonThreadFactory("ConnectionManager-handler"));
+        DaemonThreadFactory factory = new DaemonThreadFactory("ConnectionManager-io");
+        ioThreads = new IoThread[numIoThreads];
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread(Selector.open());
+            ioThreads[i].thread = factory.newThread(ioThreads[i]);
+            ioThreads[i].thread.start();
+        }
+    }
+
+    /**
+     * Closes all connections, telling their listeners, and waits for the threads to finish. Must not be called from a
+     * listener or an event handler of a peer connected through this manager.
+     */
+    public void stop() throws InterruptedException {
+        IoThread[] threads;
+        ExecutorService handlerPool;
+        synchronized (this) {
+            threads = ioThreads;
+            handlerPool = handlers;
+            ioThreads = null;
+            handlers = null;
+        }
+        if (threads == null)
+            return;
+        for (IoThread io : threads) {
+            io.stopping = true;
+            io.selector.wakeup();
+        }
+        for (IoThread io : threads)
+            io.thread.join();
+        // Let the handlers finish with what the closed connections left them, including the disconnect notifications.
+        handlerPool.shutdown();
+    }
+
+    /**
+     * Starts connecting to the given peer, which must not have been connected already. The listener is told when the
+     * handshake is done, from which point the peer can be used as if {@link Peer#connect()} had been called, and
+     * when the connection goes away. Do not call {@link Peer#run()} on it.
+     *
+     * @return the connection, which can be shut down to give up on it before the handshake is done.
+     * @throws IOException if the connection could not even be started, in which case the listener is not called.
+     */
+    public PeerConnection connect(Peer peer, ConnectionListener listener) throws IOException {
+        IoThread io;
+        ExecutorService handlerPool;
+        synchronized (this) {
+            if (ioThreads == null)
+                throw new IllegalStateException("Connection manager is not running");
+            io = ioThreads[(nextIoThread.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length];
+            handlerPool = handlers;
+        }
+        PeerAddress address = peer.getAddress();
+        int port = (address.port > 0) ? address.port : params.port;
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.connect(new InetSocketAddress(address.addr, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Connection conn = new Connection(peer, listener, channel, io, handlerPool);
+        io.register(conn);
+        return conn;
+    }
+
+    // Runs the selector for a share of the connections.
+    private class IoThread implements Runnable {
+        final Selector selector;
+        Thread thread;
+        volatile boolean stopping;
+        // Connections to register with the selector, and ones whose interest may have changed. Both are handled on
+        // this thread, as changing a selection key whilst the selector is waiting can block.
+        private final ConcurrentLinkedQueue<Connection> newConnections = new ConcurrentLinkedQueue<Connection>();
+        private final ConcurrentLinkedQueue<Connection> changed = new ConcurrentLinkedQueue<Connection>();
+
+        IoThread(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Connection conn) {
+            newConnections.add(conn);
+            selector.wakeup();
+        }
+
+        void wakeup(Connection conn) {
+            changed.add(conn);
+            selector.wakeup();
+        }
+
+        public void run() {
+            long nextTimeoutCheck = 0;
+            try {
+                while (!stopping) {
+                    selector.select(1000);
+                    Connection conn;
+                    while ((conn = newConnections.poll()) != null)
+                        conn.register(selector);
+                    while ((conn = changed.poll()) != null)
+                        conn.updateInterest();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((Connection) key.attachment()).handle(key);
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now >= nextTimeoutCheck) {
+                        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+                            ((Connection) key.attachment()).checkTimeout(now);
+                        nextTimeoutCheck = now + 1000;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Network I/O thread failed", e);
+            } finally {
+                for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys()))
+                    ((Connection) key.attachment()).close(null);
+                Connection conn;
+                while ((conn = newConnections.poll()) != null)
+                    conn.close(null);
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Don't care about this.
+                }
+            }
+        }
+    }
+
+    // One non-blocking connection. The socket and the handshake are only touched on the I/O thread, the write queue
+    // and the serializer are guarded by this object, and the messages waiting to be handled by the tasks list.
+    private class Connection implements PeerConnection {
+        private final Peer peer;
+        private final ConnectionListener listener;
+        private final SocketChannel channel;
+        private final IoThread io;
+        private final ExecutorService handlerPool;
+        private final BitcoinSerializer serializer;
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+        private volatile VersionMessage versionMessage;
+        private boolean versionAcked;
+        private boolean handshakeDone;
+        private long deadline;
+        private volatile boolean closed;
+
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean handling;
+
+        Connection(Peer peer, ConnectionListener listener, SocketChannel channel, IoThread io,
+                   ExecutorService handlerPool) {
+            this.peer = peer;
+            this.listener = listener;
+            this.channel = channel;
+            this.io = io;
+            this.handlerPool = handlerPool;
+            // The version message never uses checksumming, it is switched on once the handshake is done.
+            this.serializer = new BitcoinSerializer(params, false, true);
+            this.deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+        }
+
+        public void writeMessage(Message message) throws IOException {
+            queueMessage(message);
+            io.wakeup(this);
+        }
+
+        public VersionMessage getVersionMessage() {
+            return versionMessage;
+        }
+
+        public void shutdown() {
+            close(null);
+        }
+
+        @Override
+        public String toString() {
+            PeerAddress address = peer.getAddress();
+            int port = (address.port > 0) ? address.port : params.port;
+            return "[" + address.addr.getHostAddress() + "]:" + port + " (" +
+                    (closed ? "disconnected" : "connected") + ")";
+        }
+
+        private void queueMessage(Message message) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            synchronized (this) {
+                if (closed)
+                    throw new IOException("Socket is disconnected");
+                serializer.serialize(message, bytes);
+                writeQueue.add(ByteBuffer.wrap(bytes.toByteArray()));
+            }
+        }
+
+        void register(Selector selector) {
+            try {
+                key = channel.register(selector, 0, this);
+                if (channel.isConnected())
+                    startHandshake();
+                updateInterest();
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void handle(SelectionKey key) {
+            try {
+                if (key.isConnectable() && channel.finishConnect())
+                    startHandshake();
+                if (key.isReadable())
+                    read();
+                if (key.isValid() && key.isWritable())
+                    write();
+                updateInterest();
+            } catch (IOException e) {
+                close(e);
+            } catch (ProtocolException e) {
+                close(e);
+            } catch (CancelledKeyException e) {
+                // The connection was closed from another thread.
+            }
+        }
+
+        void updateInterest() {
+            if (key == null || !key.isValid())
+                return;
+            int ops = 0;
+            if (channel.isConnectionPending()) {
+                ops = SelectionKey.OP_CONNECT;
+            } else {
+                synchronized (tasks) {
+                    if (tasks.size() < MAX_QUEUED_MESSAGES)
+                        ops |= SelectionKey.OP_READ;
+                }
+                synchronized (this) {
+                    if (!writeQueue.isEmpty())
+                        ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                // The connection was closed from another thread.
+            }
+        }
+
+        void checkTimeout(long now) {
+            if (!handshakeDone && now > deadline)
+                close(new IOException("Timed out connecting to " + this));
+        }
+
+        private void startHandshake() throws IOException {
+            // Announce ourselves. This has to come first to connect to clients beyond v0.30.20.2 which wait to hear
+            // from us until they send their version message back.
+            queueMessage(new VersionMessage(params, peer.getBestHeight()));
+        }
+
+        private void read() throws IOException, ProtocolException {
+            if (channel.read(readBuffer) == -1)
+                throw new IOException("Socket is disconnected");
+            readBuffer.flip();
+            try {
+                Message m;
+                while (!closed && (m = serializer.deserialize(readBuffer)) != null)
+                    received(m);
+            } finally {
+                readBuffer.compact();
+            }
+            if (!readBuffer.hasRemaining()) {
+                // A message is bigger than the buffer. Once it can hold the largest message allowed, a full buffer
+                // always contains a whole one so this stops growing.
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2,
+                        Message.MAX_SIZE + serializer.getHeaderSize()));
+                readBuffer.flip();
+                bigger.put(readBuffer);
+                readBuffer = bigger;
+            } else if (readBuffer.capacity() > INITIAL_BUFFER_SIZE && readBuffer.position() < INITIAL_BUFFER_SIZE) {
+                // The big message has been dealt with and what is left fits in a normal buffer again, so don't keep
+                // holding on to up to MAX_SIZE of memory for each peer.
+                ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                readBuffer.flip();
+                smaller.put(readBuffer);
+                readBuffer = smaller;
+            }
+        }
+
+        private void write() throws IOException {
+            synchronized (this) {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer buf = writeQueue.getFirst();
+                    channel.write(buf);
+                    if (buf.hasRemaining())
+                        break;
+                    writeQueue.removeFirst();
+                }
+            }
+        }
+
+        private void received(final Message m) throws IOException, ProtocolException {
+            if (handshakeDone) {
+                enqueue(new Runnable() {
+                    public void run() {
+                        try {
+                            peer.processMessage(m);
+                        } catch (IOException e) {
+                            close(e);
+                        } catch (RuntimeException e) {
+                            log.error("unexpected exception in peer loop", e);
+                            close(e);
+                        }
+                    }
+                });
+                return;
+            }
+            if (m instanceof VersionMessage && versionMessage == null) {
+                VersionMessage version = (VersionMessage) m;
+                // BitCoinJ is a client mode implementation. That means there's not much point in us talking to other
+                // client mode nodes because we can't download the data from them we need to find/verify transactions.
+                if (!version.hasBlockChain())
+                    throw new ProtocolException("Peer does not have a copy of the block chain.");
+                versionMessage = version;
+                // Send an ACK message stating we accept the peers protocol version.
+                queueMessage(new VersionAck());
+            } else if (m instanceof VersionAck && !versionAcked) {
+                versionAcked = true;
+            } else {
+                throw new ProtocolException("Unexpected message during the version handshake: " + m);
+            }
+            if (versionMessage == null || !versionAcked)
+                return;
+            // Handshake is done! Newer clients use checksumming.
+            synchronized (this) {
+                serializer.useChecksumming(versionMessage.clientVersion >= 209);
+            }
+            handshakeDone = true;
+            log.info("Connected to peer: version={}, subVer='{}', services=0x{}, time={}, blocks={}", new Object[] {
+                    versionMessage.clientVersion,
+                    versionMessage.subVer,
+                    versionMessage.localServices,
+                    new Date(versionMessage.time * 1000),
+                    versionMessage.bestHeight
+            });
+            enqueue(new Runnable() {
+                public void run() {
+                    peer.setConnection(Connection.this);
+                    listener.onConnected(peer);
+                }
+            });
+        }
+
+        void close(final Exception cause) {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                writeQueue.clear();
+            }
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Don't care about this.
+            }
+            enqueue(new Runnable() {
+                public void run() {
+                    peer.disconnect();
+                    listener.onDisconnected(peer, cause);
+                }
+            });
+        }
+
+        // Queues a task for the handler threads. The tasks of one connection run one at a time, in order.
+        private void enqueue(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (handling)
+                    return;
+                handling = true;
+            }
+            submitHandler();
+        }
+
+        private void submitHandler() {
+            try {
+                handlerPool.execute(handler);
+            } catch (RejectedExecutionException e) {
+                // The manager was stopped and the handler threads are gone.
+                log.debug("Dropped events for {} after shutdown", this);
+            }
+        }
+
+        private final Runnable handler = new Runnable() {
+            public void run() {
+                for (int i = 0; i < MESSAGES_PER_TURN; i++) {
+                    Runnable task;
+                    boolean resumeReading;
+                    synchronized (tasks) {
+                        task = tasks.poll();
+                        if (task == null) {
+                            handling = false;
+                            return;
+                        }
+                        resumeReading = tasks.size() == MAX_QUEUED_MESSAGES - 1;
+                    }
+                    if (resumeReading)
+                        io.wakeup(Connection.this);
+                    task.run();
+                }
+                // Let the other connections have a turn before carrying on with this one.
+                submitHandler();
+            }
+        };
+    }
+}
@@ -32,11 +32,7 @@ import org.bouncycastle.asn1.DERSequenceGenerator;
 import org.bouncycastle.asn1.DERTaggedObject;
 import org.bouncycastle.asn1.sec.SECNamedCurves;
 import org.bouncycastle.asn1.x9.X9ECParameters;
-import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
-import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
 import org.bouncycastle.crypto.params.ECDomainParameters;
-import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
-import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
 import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.signers.ECDSASigner;
 
@@ -58,6 +54,12 @@ public class ECKey implements Serializable {
         secureRandom = new SecureRandom();
     }
 
+    // Multiplies of G are done with a precomputed table, which is built the first time it's needed.
+    private static class GeneratorTable {
+        static final FixedBaseMultiplier G =
+                new FixedBaseMultiplier(ecParams.getG(), ecParams.getN().bitLength());
+    }
+
     private final BigInteger priv;
     private final byte[] pub;
     
@@ -65,15 +67,10 @@ public class ECKey implements Serializable {
 
     /** Generates an entirely new keypair. */
     public ECKey() {
-        ECKeyPairGenerator generator = new ECKeyPairGenerator();
-        ECKeyGenerationParameters keygenParams = new ECKeyGenerationParameters(ecParams, secureRandom);
-        generator.init(keygenParams);
-        AsymmetricCipherKeyPair keypair = generator.generateKeyPair();
-        ECPrivateKeyParameters privParams = (ECPrivateKeyParameters) keypair.getPrivate();
-        ECPublicKeyParameters pubParams = (ECPublicKeyParameters) keypair.getPublic();
-        priv = privParams.getD();
+        // Pick a random private key in [1, n-1] the same way Bouncy Castle's key pair generator does.
+        priv = randomScalar();
         // The public key is an encoded point on the elliptic curve. It has no meaning independent of the curve.
-        pub = pubParams.getQ().getEncoded();
+        pub = publicKeyFromPrivate(priv);
     }
 
     /**
@@ -121,9 +118,30 @@ public class ECKey implements Serializable {
         this.pub = publicKeyFromPrivate(privKey);
     }
 
+    /** Creates an ECKey from a private key and the public key already derived from it, as saved in a wallet. */
+    ECKey(BigInteger privKey, byte[] pubKey) {
+        this.priv = privKey;
+        this.pub = pubKey;
+    }
+
+    /** Returns the private key. */
+    BigInteger getPrivKey() {
+        return priv;
+    }
+
     /** Derive the public key by doing a point multiply of G * priv. */
     private static byte[] publicKeyFromPrivate(BigInteger privKey) {
-        return ecParams.getG().multiply(privKey).getEncoded();
+        return GeneratorTable.G.multiply(privKey).getEncoded();
+    }
+
+    /** Returns a random number in the range [1, n-1], where n is the order of the curve. */
+    private static BigInteger randomScalar() {
+        BigInteger n = ecParams.getN();
+        BigInteger d;
+        do {
+            d = new BigInteger(n.bitLength(), secureRandom);
+        } while (d.signum() == 0 || d.compareTo(n) >= 0);
+        return d;
     }
 
     /** Gets the hash160 form of the public key (as seen in addresses). */
@@ -162,10 +180,7 @@ public class ECKey implements Serializable {
      * 32 bytes long.
      */
     public byte[] sign(byte[] input) {
-        ECDSASigner signer = new ECDSASigner();
-        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(priv, ecParams);
-        signer.init(true, privKey);
-        BigInteger[] sigs = signer.generateSignature(input);
+        BigInteger[] sigs = generateSignature(input);
         // What we get back from the signer are the two components of a signature, r and s. To get a flat byte stream
         // of the type used by BitCoin we have to encode them using DER encoding, which is just a way to pack the two
         // components into a structure.
@@ -181,6 +196,27 @@ public class ECKey implements Serializable {
         }
     }
 
+    /**
+     * Calculates the r and s components of an ECDSA signature. This is the algorithm of Bouncy Castle's ECDSASigner,
+     * except that k * G is done with the precomputed table.
+     */
+    private BigInteger[] generateSignature(byte[] input) {
+        BigInteger n = ecParams.getN();
+        BigInteger e = new BigInteger(1, input);
+        if (input.length * 8 > n.bitLength())
+            e = e.shiftRight(input.length * 8 - n.bitLength());
+        BigInteger r, s;
+        do {
+            BigInteger k;
+            do {
+                k = randomScalar();
+                r = GeneratorTable.G.multiply(k).getX().toBigInteger().mod(n);
+            } while (r.signum() == 0);
+            s = k.modInverse(n).multiply(e.add(priv.multiply(r))).mod(n);
+        } while (s.signum() == 0);
+        return new BigInteger[] { r, s };
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      * @param data Hash of the data to verify.
@@ -188,19 +224,54 @@ public class ECKey implements Serializable {
      * @param pub The public key bytes to use.
      */
     public static boolean verify(byte[] data, byte[] signature, byte[] pub) {
+        return verify(data, signature, decodePublicKey(pub));
+    }
+
+    /**
+     * Verifies the given ASN.1 encoded ECDSA signature against a hash using an already decoded public key. Returns
+     * false if the signature is not a well formed DER sequence of two integers.
+     */
+    static boolean verify(byte[] data, byte[] signature, ECPublicKeyParameters pub) {
+        BigInteger[] rs = decodeSignature(signature);
+        if (rs == null)
+            return false;
         ECDSASigner signer = new ECDSASigner();
-        ECPublicKeyParameters params = new ECPublicKeyParameters(ecParams.getCurve().decodePoint(pub), ecParams);
-        signer.init(false, params);
-        try {
-            ASN1InputStream decoder = new ASN1InputStream(signature);
-            DERSequence seq = (DERSequence) decoder.readObject();
-            DERInteger r = (DERInteger) seq.getObjectAt(0);
-            DERInteger s = (DERInteger) seq.getObjectAt(1);
-            decoder.close();
-            return signer.verifySignature(data, r.getValue(), s.getValue());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        signer.init(false, pub);
+        return signer.verifySignature(data, rs[0], rs[1]);
+    }
+
+    /** Decodes the given public key bytes into a point on the curve, throwing IllegalArgumentException if invalid. */
+    static ECPublicKeyParameters decodePublicKey(byte[] pub) {
+        return new ECPublicKeyParameters(ecParams.getCurve().decodePoint(pub), ecParams);
+    }
+
+    /**
+     * Decodes a DER encoded signature, a SEQUENCE of the two INTEGERs r and s, without going through the general ASN.1
+     * parser. Returns null if the signature is not in that form. Like the ASN.1 parser, anything after the sequence
+     * (such as the hash type byte of a scriptSig) is ignored.
+     */
+    static BigInteger[] decodeSignature(byte[] sig) {
+        // 0x30 <length> 0x02 <length of r> <r> 0x02 <length of s> <s>, all lengths in the short, one byte form.
+        if (sig.length < 8 || sig[0] != 0x30 || (sig[1] & 0x80) != 0)
+            return null;
+        int end = 2 + sig[1];
+        if (end > sig.length)
+            return null;
+        BigInteger[] rs = new BigInteger[2];
+        int cursor = 2;
+        for (int i = 0; i < 2; i++) {
+            if (cursor + 2 > end || sig[cursor] != 0x02)
+                return null;
+            int length = sig[cursor + 1];
+            cursor += 2;
+            if (length <= 0 || cursor + length > end)
+                return null;
+            byte[] value = new byte[length];
+            System.arraycopy(sig, cursor, value, 0, length);
+            rs[i] = new BigInteger(value);
+            cursor += length;
         }
+        return cursor == end ? rs : null;
     }
 
     /**
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks for a set of outputs that add up to exactly the target, so the send needs no change output. That saves an
+ * output now and an input later when the change would have been spent. If there is no such set, or it cannot be found
+ * quickly, another selector is used instead.<p>
+ *
+ * The search is a depth first branch and bound over the outputs from largest to smallest: each output is either
+ * taken or not, and a branch is abandoned as soon as it overshoots the target or what is left cannot reach it. The
+ * number of steps is bounded so a wallet with many outputs does not make sending slow.
+ */
+public class ExactMatchCoinSelector implements CoinSelector {
+    public static final int DEFAULT_MAX_TRIES = 100000;
+
+    private final CoinSelector fallback;
+    private final int maxTries;
+
+    /** Falls back to {@link LargestFirstCoinSelector} if there is no exact match. */
+    public ExactMatchCoinSelector() {
+        this(new LargestFirstCoinSelector(), DEFAULT_MAX_TRIES);
+    }
+
+    public ExactMatchCoinSelector(CoinSelector fallback, int maxTries) {
+        this.fallback = fallback;
+        this.maxTries = maxTries;
+    }
+
+    public List<TransactionOutput> select(long target, SpendableOutputs outputs) {
+        List<TransactionOutput> match = findExactMatch(target, outputs);
+        return match != null ? match : fallback.select(target, outputs);
+    }
+
+    /** Returns outputs adding up to exactly target, or null if none were found within the step limit. */
+    List<TransactionOutput> findExactMatch(long target, SpendableOutputs outputs) {
+        int n = outputs.size();
+        TransactionOutput[] candidates = new TransactionOutput[n];
+        long[] values = new long[n];
+        int i = 0;
+        for (TransactionOutput output : outputs.largestFirst()) {
+            candidates[i] = output;
+            values[i++] = output.getNanocoins();
+        }
+        // remaining[i] is the value of the outputs from i onwards.
+        long[] remaining = new long[n + 1];
+        for (i = n - 1; i >= 0; i--)
+            remaining[i] = remaining[i + 1] + values[i];
+
+        boolean[] taken = new boolean[n];
+        int depth = 0;  // The next output to decide on.
+        long value = 0;
+        for (int tries = 0; tries < maxTries; tries++) {
+            if (value == target) {
+                List<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+                for (i = 0; i < depth; i++) {
+                    if (taken[i]) selected.add(candidates[i]);
+                }
+                return selected;
+            }
+            if (value > target || value + remaining[depth] < target) {
+                // Dead end. Go back to the last output we took and try again without it. Outputs we left out have
+                // already been tried both ways.
+                do {
+                    depth--;
+                } while (depth >= 0 && !taken[depth]);
+                if (depth < 0)
+                    return null;  // Searched everything.
+                taken[depth] = false;
+                value -= values[depth];
+                depth++;
+            } else {
+                // Try taking the next output. There must be one, as otherwise remaining[depth] is zero and we didn't
+                // reach the target.
+                taken[depth] = true;
+                value += values[depth];
+                depth++;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.bouncycastle.math.ec.ECPoint;
+
+import java.math.BigInteger;
+
+/**
+ * Multiplies a fixed point, in practice the secp256k1 generator G, by scalars using a table built once up front.<p>
+ *
+ * The scalar is split into 4 bit windows. For window i the table holds d * 2<sup>4i</sup> * P for every digit d from
+ * 1 to 15, so a multiply is just one point addition per non-zero window: about 64 for a 256 bit scalar, against
+ * roughly 256 doublings plus additions for a generic multiply. The table costs a few hundred kilobytes.
+ */
+class FixedBaseMultiplier {
+    private static final int WINDOW_BITS = 4;
+    private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+
+    private final ECPoint base;
+    private final int bits;
+    // table[i][d] = d * 2^(4i) * base, table[i][0] is unused.
+    private final ECPoint[][] table;
+
+    /** Builds the table for scalars of up to the given number of bits. */
+    FixedBaseMultiplier(ECPoint base, int bits) {
+        this.base = base;
+        this.bits = bits;
+        int windows = (bits + WINDOW_BITS - 1) / WINDOW_BITS;
+        table = new ECPoint[windows][WINDOW_SIZE];
+        ECPoint windowBase = base;
+        for (int i = 0; i < windows; i++) {
+            table[i][1] = windowBase;
+            for (int d = 2; d < WINDOW_SIZE; d++)
+                table[i][d] = table[i][d - 1].add(windowBase);
+            // 16 times this window's base is the base of the next one.
+            windowBase = table[i][WINDOW_SIZE - 1].add(windowBase);
+        }
+    }
+
+    /** Returns k times the base point. */
+    ECPoint multiply(BigInteger k) {
+        if (k.signum() <= 0 || k.bitLength() > bits) {
+            // Not something we built the table for, let Bouncy Castle deal with it.
+            return base.multiply(k);
+        }
+        byte[] bytes = k.toByteArray();
+        ECPoint result = base.getCurve().getInfinity();
+        for (int i = 0; i < table.length; i++) {
+            // Window i is the low or high nibble of the i/2'th byte from the end of the big endian bytes.
+            int index = bytes.length - 1 - i / 2;
+            if (index < 0)
+                break;
+            int digit = (bytes[index] >> ((i % 2) * WINDOW_BITS)) & (WINDOW_SIZE - 1);
+            if (digit != 0)
+                result = result.add(table[i][digit]);
+        }
+        return result;
+    }
+}
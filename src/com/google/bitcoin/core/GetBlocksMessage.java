@@ -22,8 +22,8 @@ import java.util.List;
 
 public class GetBlocksMessage extends Message {
     private static final long serialVersionUID = 3479412877853645644L;
-    private final List<Sha256Hash> locator;
-    private final Sha256Hash stopHash;
+    protected final List<Sha256Hash> locator;
+    protected final Sha256Hash stopHash;
 
     public GetBlocksMessage(NetworkParameters params, List<Sha256Hash> locator, Sha256Hash stopHash) {
         super(params);
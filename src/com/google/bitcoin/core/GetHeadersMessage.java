@@ -0,0 +1,41 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.List;
+
+/**
+ * Asks the peer for the headers of the blocks following the block locator, up to {@link HeadersMessage#MAX_HEADERS}
+ * of them or until stopHash is reached. The answer is a {@link HeadersMessage}. The payload is the same as getblocks.
+ */
+public class GetHeadersMessage extends GetBlocksMessage {
+    private static final long serialVersionUID = 2854738327532814873L;
+
+    public GetHeadersMessage(NetworkParameters params, List<Sha256Hash> locator, Sha256Hash stopHash) {
+        super(params, locator, stopHash);
+    }
+
+    public String toString() {
+        StringBuffer b = new StringBuffer();
+        b.append("getheaders: ");
+        for (Sha256Hash hash : locator) {
+            b.append(hash.toString());
+            b.append(" ");
+        }
+        return b.toString();
+    }
+}
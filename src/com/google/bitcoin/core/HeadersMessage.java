@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The answer to a {@link GetHeadersMessage}: a list of block headers, each followed by a transaction count which is
+ * always zero. The headers are returned as {@link Block} objects with no transactions.
+ */
+public class HeadersMessage extends Message {
+    private static final long serialVersionUID = -2826473218924628146L;
+
+    /** The most headers a peer will send in answer to one getheaders. */
+    public static final int MAX_HEADERS = 2000;
+
+    private List<Block> blockHeaders;
+
+    public HeadersMessage(NetworkParameters params, byte[] bytes) throws ProtocolException {
+        super(params, bytes, 0);
+    }
+
+    HeadersMessage(NetworkParameters params, byte[] bytes, int offset, int length) throws ProtocolException {
+        super(params, bytes, offset, length, NetworkParameters.PROTOCOL_VERSION);
+    }
+
+    public HeadersMessage(NetworkParameters params, List<Block> headers) {
+        super(params);
+        blockHeaders = headers;
+    }
+
+    @Override
+    void parse() throws ProtocolException {
+        long numHeaders = readVarInt();
+        if (numHeaders > MAX_HEADERS)
+            throw new ProtocolException("Too many headers: got " + numHeaders + " which is larger than " +
+                                        MAX_HEADERS);
+        blockHeaders = new ArrayList<Block>((int) numHeaders);
+        for (int i = 0; i < numHeaders; i++) {
+            if (cursor + Block.HEADER_SIZE + 1 > offset + length)
+                throw new ProtocolException("Ran off the end of the headers");
+            // Each header is followed by a transaction count, which is always zero here.
+            Block header = new Block(params, readBytes(Block.HEADER_SIZE));
+            if (readVarInt() != 0)
+                throw new ProtocolException("Block header does not end with a zero transaction count");
+            blockHeaders.add(header);
+        }
+    }
+
+    @Override
+    void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        stream.write(new VarInt(blockHeaders.size()).encode());
+        for (Block header : blockHeaders) {
+            stream.write(header.cloneAsHeader().bitcoinSerialize());
+            stream.write(0);
+        }
+    }
+
+    public List<Block> getBlockHeaders() {
+        return blockHeaders;
+    }
+}
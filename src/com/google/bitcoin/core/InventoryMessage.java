@@ -23,6 +23,10 @@ public class InventoryMessage extends ListMessage {
         super(params, bytes);
     }
 
+    InventoryMessage(NetworkParameters params, byte[] bytes, int offset, int length) throws ProtocolException {
+        super(params, bytes, offset, length);
+    }
+
     public InventoryMessage(NetworkParameters params) {
         super(params);
     }
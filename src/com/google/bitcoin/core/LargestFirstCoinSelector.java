@@ -0,0 +1,43 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks the largest outputs until there is enough. This uses the fewest inputs it can, which keeps transactions small,
+ * at the cost of leaving the wallet with many small outputs over time.
+ */
+public class LargestFirstCoinSelector implements CoinSelector {
+    public List<TransactionOutput> select(long target, SpendableOutputs outputs) {
+        return gather(target, outputs.largestFirst());
+    }
+
+    /** Takes outputs in the given order until they add up to target, returns null if they never do. */
+    static List<TransactionOutput> gather(long target, Iterable<TransactionOutput> outputs) {
+        List<TransactionOutput> selected = new ArrayList<TransactionOutput>();
+        long value = 0;
+        for (TransactionOutput output : outputs) {
+            if (value >= target) break;
+            selected.add(output);
+            value += output.getNanocoins();
+        }
+        return value >= target ? selected : null;
+    }
+}
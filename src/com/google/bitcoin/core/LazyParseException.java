@@ -0,0 +1,29 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+/**
+ * Thrown when the bytes kept by a lazily parsed message turn out to be invalid once it is fully parsed. As this
+ * happens the first time part of the message is used rather than when it is received, it is unchecked.
+ */
+@SuppressWarnings("serial")
+public class LazyParseException extends RuntimeException {
+
+    public LazyParseException(String msg, Exception e) {
+        super(msg, e);
+    }
+}
@@ -36,6 +36,10 @@ public abstract class ListMessage extends Message
         super(params, bytes, 0);
     }
 
+    ListMessage(NetworkParameters params, byte[] bytes, int offset, int length) throws ProtocolException {
+        super(params, bytes, offset, length, NetworkParameters.PROTOCOL_VERSION);
+    }
+
 
     public ListMessage(NetworkParameters params) {
         super(params);
@@ -60,7 +64,7 @@ public abstract class ListMessage extends Message
             throw new ProtocolException("Too many items in INV message: " + arrayLen);
         items = new ArrayList<InventoryItem>((int)arrayLen);
         for (int i = 0; i < arrayLen; i++) {
-            if (cursor + 4 + 32 > bytes.length) {
+            if (cursor + 4 + 32 > offset + length) {
                 throw new ProtocolException("Ran off the end of the INV");
             }
             int typeCode = (int) readUint32();
@@ -37,6 +37,9 @@ public abstract class Message implements Serializable {
 
     // The offset is how many bytes into the provided byte array this message starts at.
     protected transient int offset;
+    // How many bytes of the array from the offset onwards belong to this message, or the rest of the array if the
+    // message was not given an explicit length.
+    protected transient int length;
     // The cursor keeps track of where we are in the byte array as we parse it.
     // Note that it's relative to the start of the array NOT the start of the message.
     protected transient int cursor;
@@ -46,6 +49,13 @@ public abstract class Message implements Serializable {
 
     protected transient int protocolVersion;
 
+    // False for a message that was parsed lazily until maybeParse() is called. Until then the bytes are kept.
+    protected transient boolean parsed;
+
+    // The exact bytes the message was parsed from, kept by subclasses that call cacheBytes() so the message can be
+    // hashed or sent on without serializing it again. Dropped by unCache() when the message is changed.
+    protected transient byte[] serializedBytes;
+
     // This will be saved by subclasses that implement Serializable.
     protected NetworkParameters params;
 
@@ -57,13 +67,42 @@ public abstract class Message implements Serializable {
         this.params = params;
     }
 
-    @SuppressWarnings("unused")
     Message(NetworkParameters params, byte[] msg, int offset, int protocolVersion) throws ProtocolException {
+        this(params, msg, offset, msg.length - offset, protocolVersion);
+    }
+
+    /**
+     * Parses a message that takes up length bytes of the array from the offset. The array may hold other data around
+     * it, such as a network buffer holding several messages, and is not kept after parsing.
+     */
+    Message(NetworkParameters params, byte[] msg, int offset, int length, int protocolVersion)
+            throws ProtocolException {
+        this(params, msg, offset, length, protocolVersion, false);
+    }
+
+    /**
+     * Parses a message as above. If parseLazy is set only what {@link #parseLite()} reads is parsed now and the
+     * message keeps a reference to the array, so the array must not be changed afterwards.
+     */
+    @SuppressWarnings("unused")
+    Message(NetworkParameters params, byte[] msg, int offset, int length, int protocolVersion, boolean parseLazy)
+            throws ProtocolException {
         this.protocolVersion = protocolVersion;
         this.params = params;
         this.bytes = msg;
         this.cursor = this.offset = offset;
-        parse();
+        this.length = length;
+        if (parseLazy) {
+            parseLite();
+        } else {
+            parse();
+            parsed = true;
+        }
+        if (cursor > offset + length)
+            throw new ProtocolException("Message ran past its end: read " + (cursor - offset) + " of " + length +
+                                        " bytes");
+        if (!parsed)
+            return;
         if (SELF_CHECK && !this.getClass().getSimpleName().equals("VersionMessage"))  {
             byte[] msgbytes = new byte[cursor - offset];
             System.arraycopy(msg, offset, msgbytes, 0, cursor - offset);
@@ -85,8 +124,81 @@ public abstract class Message implements Serializable {
     // serialization mechanism - the standard Java serialization system. This is used when things 
     // are serialized to the wallet.
     abstract void parse() throws ProtocolException;
+
+    /**
+     * Parses just enough of the message to leave the cursor at its end, for lazy parsing. Subclasses that support it
+     * leave the rest for {@link #parse()}, which is run by {@link #maybeParse()}. If nothing is left to parse they set
+     * parsed so the bytes are released straight away. The default parses everything.
+     */
+    void parseLite() throws ProtocolException {
+        parse();
+        parsed = true;
+    }
+
+    /**
+     * Finishes parsing a lazily parsed message. Methods that use the parts parseLite() skipped must call this first.
+     *
+     * @throws LazyParseException if the bytes turn out to be invalid.
+     */
+    protected synchronized void maybeParse() {
+        if (parsed || bytes == null)
+            return;
+        cursor = offset;
+        try {
+            parse();
+        } catch (ProtocolException e) {
+            throw new LazyParseException("Failed to parse " + getClass().getSimpleName(), e);
+        } catch (RuntimeException e) {
+            throw new LazyParseException("Failed to parse " + getClass().getSimpleName(), e);
+        }
+        parsed = true;
+        bytes = null;
+    }
     
+    /**
+     * Keeps the bytes from the offset up to the cursor as the serialized form of this message. They are shared with
+     * the array the message was parsed from if the message takes up all of it, and copied otherwise.
+     */
+    void cacheBytes() {
+        int size = cursor - offset;
+        if (offset == 0 && size == bytes.length) {
+            serializedBytes = bytes;
+        } else {
+            serializedBytes = new byte[size];
+            System.arraycopy(bytes, offset, serializedBytes, 0, size);
+        }
+    }
+
+    /**
+     * Drops the cached serialized form, so the message is serialized from its fields from now on. Subclasses must
+     * call this before any change to what they serialize.
+     */
+    protected void unCache() {
+        serializedBytes = null;
+    }
+
+    /**
+     * Returns the serialized form of the message. Unlike {@link #bitcoinSerialize()} this may return the cached array
+     * itself rather than a copy, so the result must not be modified.
+     */
+    byte[] unsafeBitcoinSerialize() {
+        if (serializedBytes != null)
+            return serializedBytes;
+        return bitcoinSerialize();
+    }
+
     public byte[] bitcoinSerialize() {
+        if (serializedBytes != null) {
+            byte[] copy = new byte[serializedBytes.length];
+            System.arraycopy(serializedBytes, 0, copy, 0, copy.length);
+            return copy;
+        }
+        int size = getSerializedSize();
+        if (size >= 0) {
+            byte[] buf = new byte[size];
+            serializeInto(buf, 0);
+            return buf;
+        }
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         try {
             bitcoinSerializeToStream(stream);
@@ -97,6 +209,25 @@ public abstract class Message implements Serializable {
         return stream.toByteArray();
     }
 
+    /**
+     * Returns the exact number of bytes the message serializes to, or -1 if it can only be found by serializing it.
+     * Subclasses that can work it out from their fields override this along with {@link #serializeInto}, so they can
+     * be written into a buffer of the right size without going through a stream.
+     */
+    int getSerializedSize() {
+        return serializedBytes != null ? serializedBytes.length : -1;
+    }
+
+    /**
+     * Writes the serialized message into the array at the offset, which must have room for it, and returns the offset
+     * just after it.
+     */
+    int serializeInto(byte[] buf, int offset) {
+        byte[] bytes = unsafeBitcoinSerialize();
+        System.arraycopy(bytes, 0, buf, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
     /**
      * Serializes this message to the provided stream. If you just want the raw bytes use bitcoinSerialize().
      */
@@ -114,13 +245,10 @@ public abstract class Message implements Serializable {
     }
     
     Sha256Hash readHash() {
-        byte[] hash = new byte[32];
-        System.arraycopy(bytes, cursor, hash, 0, 32);
         // We have to flip it around, as it's been read off the wire in little endian.
-        // Not the most efficient way to do this but the clearest.
-        hash = Utils.reverseBytes(hash);        
+        Sha256Hash hash = new Sha256Hash(bytes, cursor, true);
         cursor += 32;
-        return new Sha256Hash(hash);
+        return hash;
     }
 
 
@@ -133,6 +261,12 @@ public abstract class Message implements Serializable {
         return new BigInteger(valbytes);
     }
     
+    long readInt64() {
+        long u = Utils.readInt64(bytes, cursor);
+        cursor += 8;
+        return u;
+    }
+
     long readVarInt() {
         VarInt varint = new VarInt(bytes, cursor);
         cursor += varint.getSizeInBytes();
@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -35,7 +36,7 @@ import java.util.Date;
  *
  * Construction is blocking whilst the protocol version is negotiated.
  */
-public class NetworkConnection {
+public class NetworkConnection implements PeerConnection {
 	private static final Logger log = LoggerFactory.getLogger(NetworkConnection.class);
 	
     private final Socket socket;
@@ -73,10 +74,11 @@ public class NetworkConnection {
         socket.connect(address, connectTimeout);
         
         out = socket.getOutputStream();
-        in = socket.getInputStream();
+        // Messages are found by reading a byte at a time, so don't make a system call for each one.
+        in = new BufferedInputStream(socket.getInputStream());
 
         // the version message never uses checksumming. Update checkumming property after version is read.
-        this.serializer = new BitcoinSerializer(params, false);
+        this.serializer = new BitcoinSerializer(params, false, true);
 
         // Announce ourselves. This has to come first to connect to clients beyond v0.30.20.2 which wait to hear
         // from us until they send their version message back.
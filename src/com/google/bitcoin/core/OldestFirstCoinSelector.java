@@ -0,0 +1,30 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.List;
+
+/**
+ * Picks the outputs that became spendable first until there is enough. Old outputs have the most confirmations, and
+ * using them up stops coins lying around in the wallet forever.
+ */
+public class OldestFirstCoinSelector implements CoinSelector {
+    public List<TransactionOutput> select(long target, SpendableOutputs outputs) {
+        return LargestFirstCoinSelector.gather(target, outputs.oldestFirst());
+    }
+}
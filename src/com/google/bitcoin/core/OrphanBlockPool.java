@@ -0,0 +1,139 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.util.*;
+
+/**
+ * Holds blocks that could not be connected to the chain yet because their parent is unknown, indexed by the hash of
+ * that parent. When a block is connected its children can be taken out directly with {@link #removeChildren}.<p>
+ *
+ * The pool is bounded both in the number of blocks and in their total serialized size. When either bound is exceeded
+ * the oldest blocks are evicted, so a peer sending us junk cannot make it grow without limit.<p>
+ *
+ * This class is not thread safe, {@link BlockChain} only uses it whilst holding its own lock.
+ */
+class OrphanBlockPool {
+    public static final int DEFAULT_MAX_BLOCKS = 1000;
+    public static final long DEFAULT_MAX_BYTES = Message.MAX_SIZE;
+
+    // All orphans by their own hash, oldest first.
+    private final LinkedHashMap<Sha256Hash, Block> blocks = new LinkedHashMap<Sha256Hash, Block>();
+    private final Map<Sha256Hash, Integer> sizes = new HashMap<Sha256Hash, Integer>();
+    // Orphans by the hash of the block they are waiting for.
+    private final Map<Sha256Hash, List<Block>> children = new HashMap<Sha256Hash, List<Block>>();
+    private Block newest;
+    private int maxBlocks = DEFAULT_MAX_BLOCKS;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private long totalBytes;
+
+    /**
+     * Adds the block to the pool, evicting the oldest orphans if that takes the pool over its limits. Returns false
+     * if the block was already in the pool.
+     */
+    boolean add(Block block) {
+        Sha256Hash hash = block.getHash();
+        if (blocks.containsKey(hash))
+            return false;
+        int size = sizeOf(block);
+        blocks.put(hash, block);
+        sizes.put(hash, size);
+        List<Block> siblings = children.get(block.getPrevBlockHash());
+        if (siblings == null) {
+            siblings = new LinkedList<Block>();
+            children.put(block.getPrevBlockHash(), siblings);
+        }
+        siblings.add(block);
+        totalBytes += size;
+        newest = block;
+        trim();
+        return true;
+    }
+
+    /**
+     * Removes and returns the orphans whose parent is the given block, oldest first. Returns an empty list if there
+     * are none.
+     */
+    List<Block> removeChildren(Sha256Hash parent) {
+        List<Block> result = children.remove(parent);
+        if (result == null)
+            return Collections.emptyList();
+        for (Block block : result)
+            forget(block.getHash());
+        return result;
+    }
+
+    /** Returns the orphan that was added most recently, or null if the pool is empty. */
+    Block getNewest() {
+        if (newest == null) {
+            // The newest block was removed, so find the one added before it.
+            for (Block block : blocks.values())
+                newest = block;
+        }
+        return newest;
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return blocks.containsKey(hash);
+    }
+
+    int size() {
+        return blocks.size();
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    void setMaxBlocks(int maxBlocks) {
+        this.maxBlocks = maxBlocks;
+        trim();
+    }
+
+    void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Block> oldest = blocks.values().iterator();
+        while (blocks.size() > maxBlocks || totalBytes > maxBytes) {
+            Block block = oldest.next();
+            oldest.remove();
+            List<Block> siblings = children.get(block.getPrevBlockHash());
+            siblings.remove(block);
+            if (siblings.isEmpty())
+                children.remove(block.getPrevBlockHash());
+            totalBytes -= sizes.remove(block.getHash());
+            if (block == newest)
+                newest = null;
+        }
+    }
+
+    private void forget(Sha256Hash hash) {
+        Block block = blocks.remove(hash);
+        totalBytes -= sizes.remove(hash);
+        if (block == newest)
+            newest = null;
+    }
+
+    private static int sizeOf(Block block) {
+        // Blocks that came off the wire know how long they were, ones built locally have to be serialized.
+        int size = block.getMessageSize();
+        return size > 0 ? size : block.bitcoinSerialize().length;
+    }
+}
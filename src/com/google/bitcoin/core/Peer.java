@@ -21,23 +21,29 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
  * A Peer handles the high level communication with a BitCoin node. 
  * 
- * <p>After making the connection with connect(), call run() to start the message handling loop.
+ * <p>After making the connection with connect(), call run() to start the message handling loop. Alternatively pass
+ * the peer to {@link ConnectionManager#connect}, which handles the connection without a thread of its own.
  */
 public class Peer {
     private static final Logger log = LoggerFactory.getLogger(Peer.class);
 	
-    private NetworkConnection conn;
+    private PeerConnection conn;
     private final NetworkParameters params;
     // Whether the peer loop is supposed to be running or not. Set to false during shutdown so the peer loop
     // knows to quit when the socket goes away.
@@ -48,8 +54,28 @@ public class Peer {
     // the response. Synchronized on itself.
     private final List<GetDataFuture<Block>> pendingGetBlockFutures;
 
+    // Blocks are handed to the block chain with addAsync so they can be verified in parallel. This thread waits for
+    // each one to be connected, in order, and acts on the result. Invs and headers are handled on it too, behind the
+    // blocks that came before them, so the thread reading messages doesn't wait for the chain unless too many of our
+    // blocks are in it already. Created when first needed, and its thread exits when idle so quiet peers don't keep
+    // one.
+    private ExecutorService blockResultThread;
+
+    // Bounds how many of this peer's blocks are waiting for the chain. A permit is taken before a block is given to
+    // the chain and given back once its result has been handled. Whilst none are free the thread handling messages
+    // waits, so a peer sending blocks faster than the chain connects them stops being read from, rather than having
+    // them all held in memory. Replaced on disconnect, guarded by this object.
+    private static final int MAX_PENDING_BLOCKS = 8;
+    private Semaphore pendingBlocks = new Semaphore(MAX_PENDING_BLOCKS);
+
     private int bestHeight;
 
+    // Blocks created before this time are downloaded as headers only, see setFastCatchupTime. Whilst the chain is
+    // still behind it, downloadHeaders is true and the chain download uses getheaders instead of getblocks. Both are
+    // guarded by this object.
+    private long fastCatchupTimeSecs;
+    private boolean downloadHeaders;
+
     private PeerAddress address;
 
     private List<PeerEventListener> eventListeners;
@@ -105,6 +131,22 @@ public class Peer {
         }
     }
 
+    /**
+     * Called by a {@link ConnectionManager} once the handshake on the connection it made for this peer is done.
+     */
+    synchronized void setConnection(PeerConnection conn) {
+        this.conn = conn;
+        running = true;
+    }
+
+    PeerAddress getAddress() {
+        return address;
+    }
+
+    int getBestHeight() {
+        return bestHeight;
+    }
+
     /**
      * Runs in the peers network loop and manages communication with the peer.
      * 
@@ -114,26 +156,15 @@ public class Peer {
      */
     public void run() throws PeerException {
         // This should be called in the network loop thread for this peer
-        if (conn == null)
+        if (!(conn instanceof NetworkConnection))
             throw new RuntimeException("please call connect() first");
+        NetworkConnection blockingConn = (NetworkConnection) conn;
         
         running = true;
         
         try {
             while (true) {
-                Message m = conn.readMessage();
-                if (m instanceof InventoryMessage) {
-                    processInv((InventoryMessage) m);
-                } else if (m instanceof Block) {
-                    processBlock((Block) m);
-                } else if (m  instanceof AddressMessage) {
-                    // We don't care about addresses of the network right now. But in future,
-                    // we should save them in the wallet so we don't put too much load on the seed nodes and can
-                    // properly explore the network.
-                } else {
-                    // TODO: Handle the other messages we can receive.
-                    log.warn("Received unhandled message: {}", m);
-                }
+                processMessage(blockingConn.readMessage());
             }
         } catch (IOException e) {
             disconnect();
@@ -155,25 +186,100 @@ public class Peer {
         disconnect();
     }
 
+    /**
+     * Acts on a message received from the remote node. Messages must be passed in the order they arrived, from one
+     * thread at a time.
+     */
+    void processMessage(Message m) throws IOException {
+        if (m instanceof InventoryMessage) {
+            processInv((InventoryMessage) m);
+        } else if (m instanceof Block) {
+            processBlock((Block) m);
+        } else if (m instanceof HeadersMessage) {
+            processHeaders((HeadersMessage) m);
+        } else if (m  instanceof AddressMessage) {
+            // We don't care about addresses of the network right now. But in future,
+            // we should save them in the wallet so we don't put too much load on the seed nodes and can
+            // properly explore the network.
+        } else {
+            // TODO: Handle the other messages we can receive.
+            log.warn("Received unhandled message: {}", m);
+        }
+    }
+
     private void processBlock(Block m) throws IOException {
         // This should called in the network loop thread for this peer
+        // Was this block requested by getBlock()?
+        synchronized (pendingGetBlockFutures) {
+            for (int i = 0; i < pendingGetBlockFutures.size(); i++) {
+                GetDataFuture<Block> f = pendingGetBlockFutures.get(i);
+                if (f.getItem().hash.equals(m.getHash())) {
+                    // Yes, it was. So pass it through the future.
+                    f.setResult(m);
+                    // Blocks explicitly requested don't get sent to the block chain.
+                    pendingGetBlockFutures.remove(i);
+                    return;
+                }
+            }
+        }
+        // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
+        // The block chain verifies it on its own threads and we deal with the result once it has been connected.
+        final Block block = m;
+        final Semaphore pending;
+        synchronized (this) {
+            pending = pendingBlocks;
+        }
+        final Future<Boolean> added;
         try {
-            // Was this block requested by getBlock()?
-            synchronized (pendingGetBlockFutures) {
-                for (int i = 0; i < pendingGetBlockFutures.size(); i++) {
-                    GetDataFuture<Block> f = pendingGetBlockFutures.get(i);
-                    if (f.getItem().hash.equals(m.getHash())) {
-                        // Yes, it was. So pass it through the future.
-                        f.setResult(m);
-                        // Blocks explicitly requested don't get sent to the block chain.
-                        pendingGetBlockFutures.remove(i);
-                        return;
-                    }
+            pending.acquire();
+            synchronized (this) {
+                if (!running)
+                    return;  // Disconnected whilst we were waiting, the permits were let go of.
+            }
+            added = blockChain.addAsync(block);
+        } catch (InterruptedException e) {
+            // We were disconnected whilst waiting for room in the chain's queue.
+            Thread.currentThread().interrupt();
+            return;
+        }
+        afterPendingBlocks(new DeferredHandler() {
+            void handle() throws IOException {
+                try {
+                    blockAdded(block, added);
+                } catch (InterruptedException e) {
+                    // We were disconnected whilst waiting for the chain, there is nothing left to do.
+                    Thread.currentThread().interrupt();
+                } finally {
+                    pending.release();
                 }
             }
-            // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
-            // This call will synchronize on blockChain.
-            if (blockChain.add(m)) {
+        });
+    }
+
+    /**
+     * Runs the task on the block result thread once every block received so far has been connected to the chain and
+     * acted on. The caller doesn't wait for that, so the thread handling messages is only held up by the chain when
+     * too many blocks are already waiting for it.
+     */
+    private void afterPendingBlocks(final DeferredHandler task) {
+        ExecutorService results;
+        synchronized (this) {
+            if (blockResultThread == null)
+                blockResultThread = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("Peer-blockResults"));
+            results = blockResultThread;
+        }
+        try {
+            results.submit(task);
+        } catch (RejectedExecutionException e) {
+            // We were disconnected, there is nothing left to do.
+        }
+    }
+
+    private void blockAdded(Block m, Future<Boolean> added) throws IOException, InterruptedException {
+        // This runs on the block result thread.
+        try {
+            if (added.get()) {
                 // The block was successfully linked into the chain. Notify the user of our progress.
                 for (PeerEventListener listener : eventListeners) {
                     synchronized (listener) {
@@ -190,17 +296,113 @@ public class Peer {
                 // TODO: Should actually request root of orphan chain here.
                 blockChainDownload(m.getHash());
             }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof VerificationException) {
+                // We don't want verification failures to kill the thread.
+                log.warn("Block verification failed", e.getCause());
+            } else if (e.getCause() instanceof ScriptException) {
+                // We don't want script failures to kill the thread.
+                log.warn("Script exception", e.getCause());
+            } else {
+                // Something went wrong with the block chain itself, most likely the store. Drop the connection so
+                // the peer loop exits with an error.
+                log.error("unexpected exception adding block", e.getCause());
+                conn.shutdown();
+            }
+        }
+    }
+
+    /**
+     * The part of handling a message that has to wait for the blocks received before it, run by
+     * {@link #afterPendingBlocks}. If it fails to talk to the peer the connection is dropped, as it would have been had
+     * it run in the network loop.
+     */
+    private abstract class DeferredHandler implements Callable<Void> {
+        abstract void handle() throws IOException;
+
+        public Void call() throws Exception {
+            try {
+                handle();
+            } catch (IOException e) {
+                log.error("failed to talk to " + Peer.this, e);
+                conn.shutdown();
+            } catch (RuntimeException e) {
+                log.error("unexpected exception in peer loop", e);
+                conn.shutdown();
+            }
+            return null;
+        }
+    }
+
+    private void processHeaders(final HeadersMessage m) {
+        // This should be called in the network loop thread for this peer
+        // Headers go on top of the blocks already received, so let those finish first.
+        afterPendingBlocks(new DeferredHandler() {
+            void handle() throws IOException {
+                headersReceived(m);
+            }
+        });
+    }
+
+    private void headersReceived(HeadersMessage m) throws IOException {
+        // This runs on the block result thread.
+        long fastCatchupTime;
+        synchronized (this) {
+            if (!downloadHeaders) {
+                log.warn("Received headers we did not ask for");
+                return;
+            }
+            fastCatchupTime = fastCatchupTimeSecs;
+        }
+        // Only the headers of blocks from before the fast catchup time are wanted, the rest must be fetched in full.
+        List<Block> headers = m.getBlockHeaders();
+        int wanted = 0;
+        while (wanted < headers.size() && headers.get(wanted).getTimeSeconds() < fastCatchupTime)
+            wanted++;
+        int connected;
+        try {
+            connected = blockChain.addAll(headers.subList(0, wanted));
         } catch (VerificationException e) {
             // We don't want verification failures to kill the thread.
-            log.warn("Block verification failed", e);
+            log.warn("Block header verification failed", e);
+            return;
         } catch (ScriptException e) {
-            // We don't want script failures to kill the thread.
-            log.warn("Script exception", e);
+            throw new RuntimeException(e);  // Cannot happen, headers have no transactions.
+        }
+        if (connected > 0) {
+            for (PeerEventListener listener : eventListeners) {
+                synchronized (listener) {
+                    listener.onBlocksDownloaded(this, headers.get(wanted - 1), getPeerBlocksToGet());
+                }
+            }
+        }
+        if (wanted == HeadersMessage.MAX_HEADERS && connected > 0) {
+            // There are probably more headers to come.
+            blockChainDownload(Sha256Hash.ZERO_HASH);
+            return;
         }
+        // Either we reached the fast catchup time, or the peer has no more headers to give us, or they didn't connect.
+        // From here on we download full blocks.
+        synchronized (this) {
+            downloadHeaders = false;
+        }
+        log.info("Header download finished at height {}", blockChain.getChainHead().getHeight());
+        if (wanted < headers.size() || connected < wanted)
+            blockChainDownload(Sha256Hash.ZERO_HASH);
     }
 
-    private void processInv(InventoryMessage inv) throws IOException {
+    private void processInv(final InventoryMessage inv) {
         // This should be called in the network loop thread for this peer
+        // What we ask for depends on where the chain ends up once the blocks we already have are connected.
+        afterPendingBlocks(new DeferredHandler() {
+            void handle() throws IOException {
+                invReceived(inv);
+            }
+        });
+    }
+
+    private void invReceived(InventoryMessage inv) throws IOException {
+        // This runs on the block result thread.
 
         // The peer told us about some blocks or transactions they have. For now we only care about blocks.
         // Note that as we don't actually want to store the entire block chain or even the headers of the block
@@ -349,18 +551,34 @@ public class Peer {
         // in a relatively stateless manner and with constant/bounded memory usage.
         log.info("blockChainDownload({})", toHash.toString());
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new LinkedList<Sha256Hash>();
-        // We don't do the exponential thinning here, so if we get onto a fork of the chain we will end up
-        // redownloading the whole thing again.
-        blockLocator.add(params.genesisBlock.getHash());
-        Block topBlock = blockChain.getChainHead().getHeader();
-        if (!topBlock.equals(params.genesisBlock))
-            blockLocator.add(0, topBlock.getHash());
-        GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+        // The locator tells the peer which blocks we have, thinning out exponentially towards the genesis block, so
+        // if we ended up on a fork it can work out where we left its chain and start from there.
+        List<Sha256Hash> blockLocator = blockChain.getBlockLocator();
+        boolean headersOnly;
+        synchronized (this) {
+            headersOnly = downloadHeaders;
+        }
+        Message message;
+        if (headersOnly)
+            message = new GetHeadersMessage(params, blockLocator, toHash);
+        else
+            message = new GetBlocksMessage(params, blockLocator, toHash);
         conn.writeMessage(message);
     }
 
+    /**
+     * Sets the time before which blocks are downloaded as headers only, in seconds since the epoch. A wallet cannot
+     * have received or sent coins before its first key was created, so setting this to the creation time of the oldest
+     * key in your wallets lets the initial chain download skip the contents of all earlier blocks. Headers are fetched
+     * 2000 at a time with getheaders, which takes a fraction of the bandwidth of downloading the blocks. The default
+     * of zero downloads every block in full.<p>
+     *
+     * Takes effect at the next call to {@link #startBlockChainDownload()}.
+     */
+    public synchronized void setFastCatchupTime(long secondsSinceEpoch) {
+        fastCatchupTimeSecs = secondsSinceEpoch;
+    }
+
     /**
      * Starts an asynchronous download of the block chain. The chain download is deemed to be complete once we've
      * downloaded the same number of blocks that the peer advertised having in its version handshake message.
@@ -375,6 +593,9 @@ public class Peer {
                 }
             }
 
+            synchronized (this) {
+                downloadHeaders = blockChain.getChainHead().getHeader().getTimeSeconds() < fastCatchupTimeSecs;
+            }
             // When we just want as many blocks as possible, we can set the target hash to zero.
             blockChainDownload(Sha256Hash.ZERO_HASH);
         }
@@ -401,6 +622,15 @@ public class Peer {
     public void disconnect() {
         synchronized (this) {
             running = false;
+            if (blockResultThread != null) {
+                // Drop the handlers still queued and interrupt the one waiting for the chain, they would only try
+                // to talk to the peer we are disconnecting from.
+                blockResultThread.shutdownNow();
+                blockResultThread = null;
+            }
+            // The dropped handlers never give back their permits, so wake anyone waiting for one and start afresh.
+            pendingBlocks.release(MAX_PENDING_BLOCKS);
+            pendingBlocks = new Semaphore(MAX_PENDING_BLOCKS);
         }
         try {
             // This is the correct way to stop an IO bound loop
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+
+/**
+ * The link to a remote node that a {@link Peer} talks through, once the version handshake is done. This is either a
+ * blocking {@link NetworkConnection} driven by {@link Peer#run()}, or a non-blocking connection owned by a
+ * {@link ConnectionManager}.
+ */
+interface PeerConnection {
+    /**
+     * Sends the given message to the remote node. Safe to call from any thread.
+     */
+    void writeMessage(Message message) throws IOException;
+
+    /** Returns the version message received from the other end of the connection during the handshake. */
+    VersionMessage getVersionMessage();
+
+    /**
+     * Closes the connection. Messages that were not yet written to the network may be lost.
+     */
+    void shutdown() throws IOException;
+}
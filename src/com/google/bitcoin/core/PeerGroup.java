@@ -28,7 +28,9 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -42,7 +44,8 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Maintain a number of connections to peers.
  * 
  * <p>PeerGroup tries to maintain a constant number of connections to a set of distinct peers.
- * Each peer runs a network listener in its own thread.  When a connection is lost, a new peer
+ * Each peer runs a network listener in its own thread, unless a {@link ConnectionManager} is set in which case
+ * the connections share its threads.  When a connection is lost, a new peer
  * will be tried after a delay as long as the number of connections less than the maximum.
  * 
  * <p>Connections are made to addresses from a provided list.  When that list is exhausted,
@@ -68,11 +71,15 @@ public class PeerGroup {
     // Connection initiation thread
     private Thread connectThread;
     // True if the connection initiation thread should be running
-    private boolean running;
+    private volatile boolean running;
     // A pool of threads for peers, of size maxConnection
     private ThreadPoolExecutor peerPool;
     // Currently active peers
     private Set<Peer> peers;
+    // If set, connections are made through this instead of running each peer in the pool
+    private volatile ConnectionManager connectionManager;
+    // Connections started through the connection manager that have not finished their handshake yet
+    private final Map<Peer, PeerConnection> pendingConnections = new HashMap<Peer, PeerConnection>();
     // The peer we are currently downloading the chain from
     private Peer downloadPeer;
     // Callback for events related to chain download
@@ -129,6 +136,15 @@ public class PeerGroup {
     public int getMaxConnections() {
         return peerPool.getMaximumPoolSize();
     }
+
+    /**
+     * Makes new connections through the given connection manager, which must have been started, so that they share
+     * its few network threads instead of each taking a thread of their own. This allows far more connections to be
+     * kept open. The manager is not stopped along with the peer group.
+     */
+    public void setConnectionManager(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
     
     /** Add an address to the list of potential peers to connect to */
     public void addAddress(PeerAddress peerAddress) {
@@ -216,6 +232,16 @@ public class PeerGroup {
 
             peerPool.shutdownNow();
 
+            // Give up on connections that are still being made, they would otherwise join after we stopped.
+            synchronized (pendingConnections) {
+                for (PeerConnection conn : pendingConnections.values()) {
+                    try {
+                        conn.shutdown();
+                    } catch (IOException e) {
+                        // Don't care about this.
+                    }
+                }
+            }
             synchronized (peers) {
                 for (Peer peer : peers) {
                     peer.disconnect();
@@ -233,6 +259,12 @@ public class PeerGroup {
                 try {
                     final Peer peer = new Peer(params, address,
                             blockStore.getChainHead().getHeight(), chain);
+                    if (connectionManager != null) {
+                        if (connectThroughManager(peer, address))
+                            break;
+                        Thread.sleep(CONNECTION_DELAY_MILLIS);
+                        continue;
+                    }
                     Runnable command = new Runnable() {
                         public void run() {
                             try {
@@ -277,6 +309,53 @@ public class PeerGroup {
                 Thread.sleep(CONNECTION_DELAY_MILLIS);
             }
         }
+
+        /*
+         * Starts connecting to the peer through the connection manager. Returns false if we are already at
+         * maxConnections, counting connections that are still being set up.
+         */
+        private boolean connectThroughManager(final Peer peer, final PeerAddress address) {
+            ConnectionManager.ConnectionListener listener = new ConnectionManager.ConnectionListener() {
+                public void onConnected(Peer p) {
+                    synchronized (pendingConnections) {
+                        pendingConnections.remove(peer);
+                    }
+                    if (!running) {
+                        // The group was stopped whilst we were connecting. This comes back through onDisconnected.
+                        peer.disconnect();
+                        return;
+                    }
+                    log.info("running " + peer);
+                    peers.add(peer);
+                    handleNewPeer(peer);
+                }
+
+                public void onDisconnected(Peer p, Exception cause) {
+                    synchronized (pendingConnections) {
+                        pendingConnections.remove(peer);
+                    }
+                    if (cause != null)
+                        log.error("error while talking to peer", cause);
+                    // We will retry this peer after all other peers have been tried.
+                    inactives.add(address);
+                    if (peers.remove(peer))
+                        handlePeerDeath(peer);
+                }
+            };
+            // The listener can't take the connection out of the pending ones before it has been put in.
+            synchronized (pendingConnections) {
+                if (peers.size() + pendingConnections.size() >= getMaxConnections())
+                    return false;
+                try {
+                    log.info("connecting to " + peer);
+                    pendingConnections.put(peer, connectionManager.connect(peer, listener));
+                } catch (IOException e) {
+                    log.error("error while connecting to peer", e);
+                    inactives.add(address);
+                }
+            }
+            return true;
+        }
     }
 
     /**
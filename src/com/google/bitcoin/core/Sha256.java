@@ -0,0 +1,107 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 hashing without the cost of looking up a provider every time. Each thread keeps its own
+ * {@link MessageDigest}, and the methods here write their results into arrays supplied by the caller.<p>
+ *
+ * The batch method hashes many equally sized inputs laid out at a fixed stride in one array, such as the pairs of
+ * nodes of a merkle tree level or the headers in a block of store records. Results are in the order the digest
+ * produces them, which is the order hashes appear in on the wire, so there is nothing to reverse between steps.
+ */
+public class Sha256 {
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+    };
+
+    private Sha256() {
+    }
+
+    /** Returns this thread's digest, reset and ready for use. It must not be kept past the current call. */
+    static MessageDigest digest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
+    /** Writes SHA256(input range) into out at outOffset. */
+    public static void hash(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = digest();
+        digest.update(input, offset, length);
+        finish(digest, out, outOffset);
+    }
+
+    /** Writes SHA256(SHA256(input range)) into out at outOffset. */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = digest();
+        digest.update(input, offset, length);
+        finishDouble(digest, out, outOffset);
+    }
+
+    /** Writes SHA256(SHA256(range 1 + range 2)) into out at outOffset. */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2,
+                                              byte[] out, int outOffset) {
+        MessageDigest digest = digest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        finishDouble(digest, out, outOffset);
+    }
+
+    /**
+     * Double hashes count inputs of the given length, the first at offset and each following one stride bytes
+     * further on, writing the 32 byte results one after another into out starting at outOffset.
+     */
+    public static void doubleDigestMany(byte[] input, int offset, int length, int stride, int count,
+                                        byte[] out, int outOffset) {
+        MessageDigest digest = digest();
+        for (int i = 0; i < count; i++) {
+            digest.update(input, offset + i * stride, length);
+            finishDouble(digest, out, outOffset + i * DIGEST_LENGTH);
+        }
+    }
+
+    private static void finishDouble(MessageDigest digest, byte[] out, int outOffset) {
+        // The first round is written into the output and hashed again from there, the digest copies it on update.
+        finish(digest, out, outOffset);
+        digest.update(out, outOffset, DIGEST_LENGTH);
+        finish(digest, out, outOffset);
+    }
+
+    private static void finish(MessageDigest digest, byte[] out, int outOffset) {
+        try {
+            digest.digest(out, outOffset, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen, the output always has room.
+        }
+    }
+}
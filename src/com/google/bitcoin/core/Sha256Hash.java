@@ -24,10 +24,17 @@ import java.util.Arrays;
 
 /**
  * A Sha256Hash just wraps a byte[] so that equals and hashcode work correctly, allowing it to be used as keys in a
- * map. It also checks that the length is correct and provides a bit more type safety.
+ * map. It also checks that the length is correct and provides a bit more type safety.<p>
+ *
+ * Hashes are used as the keys of most maps in the library, so the hash code is calculated only once and equality
+ * compares the bytes eight at a time.
  */
 public class Sha256Hash implements Serializable {
+    // Fixed to the value the class had before the hash code was cached, so stored wallets still load.
+    private static final long serialVersionUID = 4807494979333778890L;
+
     private byte[] bytes;
+    private transient int hash;
 
     public static final Sha256Hash ZERO_HASH = new Sha256Hash(new byte[32]);
 
@@ -37,6 +44,21 @@ public class Sha256Hash implements Serializable {
         this.bytes = bytes;
     }
 
+    /**
+     * Creates a Sha256Hash by copying 32 bytes from the buffer at the given offset. Hashes appear on the wire and in
+     * digest output in the reverse of the order they are displayed and stored in, if reversed is true the bytes are
+     * flipped around as they are copied.
+     */
+    public Sha256Hash(byte[] buf, int offset, boolean reversed) {
+        bytes = new byte[32];
+        if (reversed) {
+            for (int i = 0; i < 32; i++)
+                bytes[i] = buf[offset + 31 - i];
+        } else {
+            System.arraycopy(buf, offset, bytes, 0, 32);
+        }
+    }
+
     /** Creates a Sha256Hash by decoding the given hex string. It must be 64 characters long. */
     public Sha256Hash(String string) {
         assert string.length() == 64;
@@ -46,18 +68,31 @@ public class Sha256Hash implements Serializable {
     /** Returns true if the hashes are equal. */
     @Override
     public boolean equals(Object other) {
+        if (this == other) return true;
         if (!(other instanceof Sha256Hash)) return false;
-        return Arrays.equals(bytes, ((Sha256Hash)other).bytes);
+        Sha256Hash o = (Sha256Hash) other;
+        if (hash != 0 && o.hash != 0 && hash != o.hash) return false;
+        byte[] a = bytes, b = o.bytes;
+        for (int i = 0; i < 32; i += 8) {
+            if (Utils.readInt64(a, i) != Utils.readInt64(b, i))
+                return false;
+        }
+        return true;
     }
 
     /**
-     * Hash code of the byte array as calculated by {@link Arrays#hashCode()}. Note the difference between a SHA256
-     * secure bytes and the type of quick/dirty bytes used by the Java hashCode method which is designed for use in
-     * bytes tables.
+     * Hash code of the byte array as calculated by {@link Arrays#hashCode()}, worked out the first time it is needed.
+     * Note the difference between a SHA256 secure bytes and the type of quick/dirty bytes used by the Java hashCode
+     * method which is designed for use in bytes tables.
      */
     @Override
     public int hashCode() {
-        return Arrays.hashCode(bytes);
+        int h = hash;
+        if (h == 0) {
+            h = Arrays.hashCode(bytes);
+            hash = h;
+        }
+        return h;
     }
 
     @Override
@@ -74,6 +109,16 @@ public class Sha256Hash implements Serializable {
         return bytes;
     }
 
+    /**
+     * Writes the hash into the buffer at the given offset in wire order, that is, reversed. Returns the offset just
+     * after it.
+     */
+    public int writeReversed(byte[] buf, int offset) {
+        for (int i = 0; i < 32; i++)
+            buf[offset + i] = bytes[31 - i];
+        return offset + 32;
+    }
+
     public Sha256Hash duplicate() {
         return new Sha256Hash(bytes);
     }
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks ECDSA signatures at a high rate, for example those of transactions relayed to us by peers. Public keys are
+ * decoded into curve points once and kept in a bounded cache, as the same keys tend to turn up again and again, and
+ * signatures are decoded with a small DER parser rather than the general ASN.1 one.<p>
+ *
+ * {@link #verifyAll(List)} splits a batch of signatures across a thread pool and returns a result for each of them.
+ * Instances are thread safe. Call {@link #shutdown()} when done to stop the pool threads.
+ */
+public class SignatureVerifier {
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+    // The fewest signatures worth handing to another thread.
+    private static final int MIN_CHUNK = 8;
+
+    /** A signature to check: the hash that was signed, the DER encoded signature and the public key bytes. */
+    public static class Request {
+        final byte[] hash;
+        final byte[] signature;
+        final byte[] pubKey;
+
+        public Request(byte[] hash, byte[] signature, byte[] pubKey) {
+            this.hash = hash;
+            this.signature = signature;
+            this.pubKey = pubKey;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final Map<ByteArrayKey, ECPublicKeyParameters> pubKeys;
+
+    /** Creates a verifier using one thread per processor. */
+    public SignatureVerifier() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a verifier that uses up to the given number of threads for a batch, including the calling thread, and
+     * caches up to cacheSize decoded public keys.
+     */
+    public SignatureVerifier(int threads, final int cacheSize) {
+        this.threads = threads;
+        executor = threads > 1 ?
+                Executors.newFixedThreadPool(threads - 1, new DaemonThreadFactory("SignatureVerifier")) : null;
+        pubKeys = new LinkedHashMap<ByteArrayKey, ECPublicKeyParameters>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteArrayKey, ECPublicKeyParameters> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns true if the signature over hash was made by the private key of pubKey. Malformed signatures and
+     * public keys are reported as not verifying.
+     */
+    public boolean verify(byte[] hash, byte[] signature, byte[] pubKey) {
+        ECPublicKeyParameters key = getPubKey(pubKey);
+        return key != null && ECKey.verify(hash, signature, key);
+    }
+
+    /** Checks each of the signatures, in parallel, and returns whether each one verified in the same order. */
+    public boolean[] verifyAll(final List<Request> requests) {
+        final boolean[] results = new boolean[requests.size()];
+        int chunk = Math.max(MIN_CHUNK, (requests.size() + threads - 1) / threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        if (executor != null) {
+            // The first chunk is left for this thread.
+            for (int start = chunk; start < requests.size(); start += chunk) {
+                final int from = start;
+                final int to = Math.min(start + chunk, requests.size());
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        verifyRange(requests, from, to, results);
+                    }
+                }));
+            }
+        }
+        verifyRange(requests, 0, futures.isEmpty() ? requests.size() : chunk, results);
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    /** Stops the threads used for batches. The verifier must not be used afterwards. */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private void verifyRange(List<Request> requests, int from, int to, boolean[] results) {
+        for (int i = from; i < to; i++) {
+            Request request = requests.get(i);
+            results[i] = verify(request.hash, request.signature, request.pubKey);
+        }
+    }
+
+    private ECPublicKeyParameters getPubKey(byte[] pubKey) {
+        ByteArrayKey bytes = new ByteArrayKey(pubKey);
+        synchronized (pubKeys) {
+            ECPublicKeyParameters key = pubKeys.get(bytes);
+            if (key != null)
+                return key;
+        }
+        // Decode outside the lock, two threads decoding the same key just do some work twice.
+        ECPublicKeyParameters key;
+        try {
+            key = ECKey.decodePublicKey(pubKey);
+        } catch (RuntimeException e) {
+            // Not a point on the curve.
+            return null;
+        }
+        synchronized (pubKeys) {
+            // Keep our own copy of the bytes, the caller's array may be reused.
+            pubKeys.put(new ByteArrayKey(pubKey.clone()), key);
+        }
+        return key;
+    }
+}
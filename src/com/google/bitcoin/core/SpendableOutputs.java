@@ -0,0 +1,124 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.util.*;
+
+/**
+ * The outputs a {@link Wallet} can spend: those that are ours and not yet spent, in transactions on the best chain.
+ * They are indexed by outpoint, by value and by age, so a {@link CoinSelector} can walk them in whichever order suits
+ * it without sorting the whole set for every send.<p>
+ *
+ * Age is the order in which the wallet saw the outputs become spendable. When the wallet has to work the index out
+ * again, after a re-org or when keys are added, transactions are put back in the order of the first block they
+ * appeared in.<p>
+ *
+ * The wallet keeps this up to date and only hands it out whilst holding its own lock, it is not thread safe.
+ */
+public class SpendableOutputs {
+    // All outputs by outpoint, oldest first.
+    private final LinkedHashMap<TransactionOutPoint, TransactionOutput> byOutPoint =
+            new LinkedHashMap<TransactionOutPoint, TransactionOutput>();
+    // The same outputs bucketed by value, largest value first. Each bucket is oldest first.
+    private final TreeMap<Long, LinkedHashMap<TransactionOutPoint, TransactionOutput>> byValue =
+            new TreeMap<Long, LinkedHashMap<TransactionOutPoint, TransactionOutput>>(Collections.<Long>reverseOrder());
+    private long total;
+
+    SpendableOutputs() {
+    }
+
+    void add(TransactionOutPoint outpoint, TransactionOutput output) {
+        remove(outpoint);
+        byOutPoint.put(outpoint, output);
+        long value = output.getNanocoins();
+        LinkedHashMap<TransactionOutPoint, TransactionOutput> bucket = byValue.get(value);
+        if (bucket == null) {
+            bucket = new LinkedHashMap<TransactionOutPoint, TransactionOutput>();
+            byValue.put(value, bucket);
+        }
+        bucket.put(outpoint, output);
+        total += value;
+    }
+
+    /** Removes the output at the given outpoint and returns it, or returns null if it wasn't there. */
+    TransactionOutput remove(TransactionOutPoint outpoint) {
+        TransactionOutput output = byOutPoint.remove(outpoint);
+        if (output == null)
+            return null;
+        long value = output.getNanocoins();
+        LinkedHashMap<TransactionOutPoint, TransactionOutput> bucket = byValue.get(value);
+        bucket.remove(outpoint);
+        if (bucket.isEmpty())
+            byValue.remove(value);
+        total -= value;
+        return output;
+    }
+
+    Set<TransactionOutPoint> getOutPoints() {
+        return byOutPoint.keySet();
+    }
+
+    /** Returns true if the output at the given outpoint can be spent. */
+    public boolean contains(TransactionOutPoint outpoint) {
+        return byOutPoint.containsKey(outpoint);
+    }
+
+    /** Returns how many outputs there are. */
+    public int size() {
+        return byOutPoint.size();
+    }
+
+    /** Returns the total value of the outputs in nanocoins, which is the available balance of the wallet. */
+    public long getTotal() {
+        return total;
+    }
+
+    /** Returns the outputs in the order they became spendable. */
+    public Iterable<TransactionOutput> oldestFirst() {
+        return Collections.unmodifiableCollection(byOutPoint.values());
+    }
+
+    /** Returns the outputs from the largest value to the smallest. Outputs of the same value come oldest first. */
+    public Iterable<TransactionOutput> largestFirst() {
+        return new Iterable<TransactionOutput>() {
+            public Iterator<TransactionOutput> iterator() {
+                final Iterator<LinkedHashMap<TransactionOutPoint, TransactionOutput>> buckets =
+                        byValue.values().iterator();
+                return new Iterator<TransactionOutput>() {
+                    private Iterator<TransactionOutput> current = Collections.<TransactionOutput>emptyList().iterator();
+
+                    public boolean hasNext() {
+                        while (!current.hasNext() && buckets.hasNext())
+                            current = buckets.next().values().iterator();
+                        return current.hasNext();
+                    }
+
+                    public TransactionOutput next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        return current.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -82,6 +82,13 @@ public class Transaction extends Message implements Serializable {
         // inputs/outputs will be created in parse()
     }
 
+    /**
+     * Creates a transaction from a tx message of length bytes, starting offset bytes into the array.
+     */
+    Transaction(NetworkParameters params, byte[] payload, int offset, int length) throws ProtocolException {
+        super(params, payload, offset, length, NetworkParameters.PROTOCOL_VERSION);
+    }
+
     /**
      * Returns a read-only list of the inputs of this transaction.
      */
@@ -94,8 +101,9 @@ public class Transaction extends Message implements Serializable {
      */
     public Sha256Hash getHash() {
         if (hash == null) {
-            byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            // A transaction that came off the wire is hashed straight from the bytes it was parsed from.
+            byte[] bits = unsafeBitcoinSerialize();
+            hash = new Sha256Hash(doubleDigest(bits), 0, true);
         }
         return hash;
     }
@@ -109,12 +117,17 @@ public class Transaction extends Message implements Serializable {
      * include spent outputs or not.
      */
     BigInteger getValueSentToMe(Wallet wallet, boolean includeSpent) {
+        return BigInteger.valueOf(getNanocoinsSentToMe(wallet, includeSpent));
+    }
+
+    /** Same as {@link #getValueSentToMe(Wallet, boolean)} but adds up nanocoins in a long. */
+    long getNanocoinsSentToMe(Wallet wallet, boolean includeSpent) {
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionOutput o : outputs) {
             if (!o.isMine(wallet)) continue;
             if (!includeSpent && !o.isAvailableForSpending()) continue;
-            v = v.add(o.getValue());
+            v += o.getNanocoins();
         }
         return v;
     }
@@ -154,8 +167,13 @@ public class Transaction extends Message implements Serializable {
      * @return sum in nanocoins.
      */
     public BigInteger getValueSentFromMe(Wallet wallet) throws ScriptException {
+        return BigInteger.valueOf(getNanocoinsSentFromMe(wallet));
+    }
+
+    /** Same as {@link #getValueSentFromMe(Wallet)} but adds up nanocoins in a long. */
+    long getNanocoinsSentFromMe(Wallet wallet) throws ScriptException {
         // This is tested in WalletTest.
-        BigInteger v = BigInteger.ZERO;
+        long v = 0;
         for (TransactionInput input : inputs) {
             // This input is taking value from an transaction in our wallet. To discover the value,
             // we must find the connected transaction.
@@ -170,7 +188,7 @@ public class Transaction extends Message implements Serializable {
             // case we ignore it.
             if (!connected.isMine(wallet))
                 continue;
-            v = v.add(connected.getValue());
+            v += connected.getNanocoins();
         }
         return v;
     }
@@ -237,6 +255,7 @@ public class Transaction extends Message implements Serializable {
             cursor += output.getMessageSize();
         }
         lockTime = readUint32();
+        cacheBytes();
     }
 
     /**
@@ -310,6 +329,7 @@ public class Transaction extends Message implements Serializable {
 
     /** Adds an input directly, with no checking that it's valid. */
     public void addInput(TransactionInput input) {
+        unCache();
         inputs.add(input);
     }
 
@@ -317,6 +337,7 @@ public class Transaction extends Message implements Serializable {
      * Adds the given output to this transaction. The output must be completely initialized.
      */
     public void addOutput(TransactionOutput to) {
+        unCache();
         to.parentTransaction = this;
         outputs.add(to);
     }
@@ -339,6 +360,9 @@ public class Transaction extends Message implements Serializable {
         // I don't currently have an easy way to test other modes work, as the official client does not use them.
         assert hashType == SigHash.ALL;
 
+        // The input scripts are about to change, and the hashes signed must be of the transaction as it is then.
+        unCache();
+
         // The transaction is signed with the input scripts empty except for the input we are signing. In the case
         // where addInput has been used to set up a new transaction, they are already all empty. The input being signed
         // has to have the connected OUTPUT program in it when the hash is calculated!
@@ -392,24 +416,58 @@ public class Transaction extends Message implements Serializable {
     }
 
     private byte[] hashTransactionForSignature(SigHash type, boolean anyoneCanPay) {
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            bitcoinSerializeToStream(bos);
-            // We also have to write a hash type.
-            int hashType = type.ordinal() + 1;
-            if (anyoneCanPay)
-                hashType |= 0x80;
-            Utils.uint32ToByteStreamLE(hashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            return doubleDigest(bos.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        int size = getSerializedSize();
+        byte[] bytes = new byte[size + 4];
+        serializeInto(bytes, 0);
+        // We also have to write a hash type.
+        int hashType = type.ordinal() + 1;
+        if (anyoneCanPay)
+            hashType |= 0x80;
+        Utils.uint32ToByteArrayLE(hashType, bytes, size);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return doubleDigest(bytes);
+    }
+
+    @Override
+    int getSerializedSize() {
+        if (serializedBytes != null)
+            return serializedBytes.length;
+        int size = 4 + VarInt.sizeOf(inputs.size()) + VarInt.sizeOf(outputs.size()) + 4;
+        for (TransactionInput in : inputs)
+            size += in.getSerializedSize();
+        for (TransactionOutput out : outputs)
+            size += out.getSerializedSize();
+        return size;
+    }
+
+    @Override
+    int serializeInto(byte[] buf, int offset) {
+        if (serializedBytes != null)
+            return super.serializeInto(buf, offset);
+        uint32ToByteArrayLE(version, buf, offset);
+        offset = VarInt.encodeInto(inputs.size(), buf, offset + 4);
+        for (TransactionInput in : inputs)
+            offset = in.serializeInto(buf, offset);
+        offset = VarInt.encodeInto(outputs.size(), buf, offset);
+        for (TransactionOutput out : outputs)
+            offset = out.serializeInto(buf, offset);
+        uint32ToByteArrayLE(lockTime, buf, offset);
+        return offset + 4;
     }
     
+    @Override
+    protected void unCache() {
+        super.unCache();
+        hash = null;
+    }
+
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        if (serializedBytes != null) {
+            stream.write(serializedBytes);
+            return;
+        }
         uint32ToByteStreamLE(version, stream);
         stream.write(new VarInt(inputs.size()).encode());
         for (TransactionInput in : inputs)
@@ -81,6 +81,21 @@ public class TransactionInput extends Message implements Serializable {
         sequence = readUint32();
     }
     
+    @Override
+    int getSerializedSize() {
+        return outpoint.getSerializedSize() + VarInt.sizeOf(scriptBytes.length) + scriptBytes.length + 4;
+    }
+
+    @Override
+    int serializeInto(byte[] buf, int offset) {
+        offset = outpoint.serializeInto(buf, offset);
+        offset = VarInt.encodeInto(scriptBytes.length, buf, offset);
+        System.arraycopy(scriptBytes, 0, buf, offset, scriptBytes.length);
+        offset += scriptBytes.length;
+        Utils.uint32ToByteArrayLE(sequence, buf, offset);
+        return offset + 4;
+    }
+
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         outpoint.bitcoinSerializeToStream(stream);
@@ -60,6 +60,18 @@ public class TransactionOutPoint extends Message implements Serializable {
         index = readUint32();
     }
 
+    @Override
+    int getSerializedSize() {
+        return 32 + 4;
+    }
+
+    @Override
+    int serializeInto(byte[] buf, int offset) {
+        offset = hash.writeReversed(buf, offset);
+        Utils.uint32ToByteArrayLE(index, buf, offset);
+        return offset + 4;
+    }
+
     @Override
     public void bitcoinSerializeToStream(OutputStream stream) throws IOException {
         stream.write(Utils.reverseBytes(hash.getBytes()));
@@ -92,6 +104,20 @@ public class TransactionOutPoint extends Message implements Serializable {
         return getConnectedOutput().getScriptPubKey().getPubKeyHash();
     }
 
+    /** Outpoints are equal if they refer to the same output of the same transaction. */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof TransactionOutPoint)) return false;
+        TransactionOutPoint o = (TransactionOutPoint) other;
+        return index == o.index && hash.equals(o.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * hash.hashCode() + (int) index;
+    }
+
     @Override
     public String toString() {
         return "outpoint " + index + ":" + hash.toString();
@@ -19,9 +19,7 @@ package com.google.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.Serializable;
+import java.io.*;
 import java.math.BigInteger;
 
 /**
@@ -32,9 +30,19 @@ public class TransactionOutput extends Message implements Serializable {
     private static final Logger log = LoggerFactory.getLogger(TransactionOutput.class);
     private static final long serialVersionUID = -590332479859256824L;
 
+    // The value is held in nanocoins as a long, but wallets store it as a BigInteger as it always was. The fields
+    // listed here are the ones Java serialization reads and writes, see readObject/writeObject.
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("value", BigInteger.class),
+        new ObjectStreamField("scriptBytes", byte[].class),
+        new ObjectStreamField("availableForSpending", boolean.class),
+        new ObjectStreamField("spentBy", TransactionInput.class),
+        new ObjectStreamField("parentTransaction", Transaction.class)
+    };
+
     // A transaction output has some value and a script used for authenticating that the redeemer is allowed to spend
     // this output.
-    private BigInteger value;
+    private long value;
     private byte[] scriptBytes;
 
     // The script bytes are parsed and turned into a Script on demand.
@@ -59,8 +67,12 @@ public class TransactionOutput extends Message implements Serializable {
     }
 
     TransactionOutput(NetworkParameters params, Transaction parent, BigInteger value, Address to) {
+        this(params, parent, BitCoin.valueOf(value), to);
+    }
+
+    TransactionOutput(NetworkParameters params, Transaction parent, BitCoin value, Address to) {
         super(params);
-        this.value = value;
+        this.value = value.longValue();
         this.scriptBytes = Script.createOutputScript(to);
         parentTransaction = parent;
         availableForSpending = true;
@@ -70,7 +82,7 @@ public class TransactionOutput extends Message implements Serializable {
     TransactionOutput(NetworkParameters params, Transaction parent, byte[] scriptBytes) {
         super(params);
         this.scriptBytes = scriptBytes;
-        this.value = Utils.toNanoCoins(50, 0);
+        this.value = BitCoin.valueOf(50, 0).longValue();
         parentTransaction = parent;
         availableForSpending = true;
     }
@@ -82,15 +94,29 @@ public class TransactionOutput extends Message implements Serializable {
     }
     
     void parse() throws ProtocolException {
-        value = readUint64();
+        value = readInt64();
         int scriptLen = (int) readVarInt();
         scriptBytes = readBytes(scriptLen);
     }
     
+    @Override
+    int getSerializedSize() {
+        return 8 + VarInt.sizeOf(scriptBytes.length) + scriptBytes.length;
+    }
+
+    @Override
+    int serializeInto(byte[] buf, int offset) {
+        assert scriptBytes != null;
+        Utils.uint64ToByteArrayLE(value, buf, offset);
+        offset = VarInt.encodeInto(scriptBytes.length, buf, offset + 8);
+        System.arraycopy(scriptBytes, 0, buf, offset, scriptBytes.length);
+        return offset + scriptBytes.length;
+    }
+
     @Override
     public void bitcoinSerializeToStream( OutputStream stream) throws IOException {
         assert scriptBytes != null;
-        Utils.uint64ToByteStreamLE(getValue(), stream);
+        Utils.uint64ToByteStreamLE(value, stream);
         // TODO: Move script serialization into the Script class, where it belongs.
         stream.write(new VarInt(scriptBytes.length).encode());
         stream.write(scriptBytes);
@@ -101,6 +127,16 @@ public class TransactionOutput extends Message implements Serializable {
      * receives.
      */
     public BigInteger getValue() {
+        return BigInteger.valueOf(value);
+    }
+
+    /** Returns the value of this output. */
+    public BitCoin getAmount() {
+        return BitCoin.valueOf(value);
+    }
+
+    /** Returns the value of this output in nanocoins, without allocating anything. */
+    long getNanocoins() {
         return value;
     }
 
@@ -151,7 +187,7 @@ public class TransactionOutput extends Message implements Serializable {
     /** Returns a human readable debug string. */
     public String toString() {
         try {
-            return "TxOut of " + Utils.bitcoinValueToFriendlyString(value) + " to " + getScriptPubKey().getToAddress()
+            return "TxOut of " + BitCoin.toFriendlyString(value) + " to " + getScriptPubKey().getToAddress()
                     .toString() + " script:" + getScriptPubKey().toString();
         } catch (ScriptException e) {
             throw new RuntimeException(e);
@@ -162,4 +198,23 @@ public class TransactionOutput extends Message implements Serializable {
     TransactionInput getSpentBy() {
         return spentBy;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("value", BigInteger.valueOf(value));
+        fields.put("scriptBytes", scriptBytes);
+        fields.put("availableForSpending", availableForSpending);
+        fields.put("spentBy", spentBy);
+        fields.put("parentTransaction", parentTransaction);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        value = ((BigInteger) fields.get("value", null)).longValue();
+        scriptBytes = (byte[]) fields.get("scriptBytes", null);
+        availableForSpending = fields.get("availableForSpending", false);
+        spentBy = (TransactionInput) fields.get("spentBy", null);
+        parentTransaction = (Transaction) fields.get("parentTransaction", null);
+    }
 }
\ No newline at end of file
@@ -22,8 +22,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * A collection of various utility methods that are helpful for working with the BitCoin protocol.
@@ -92,6 +90,16 @@ public class Utils {
         stream.write((int)(0xFF & (val >> 24)));
     }
     
+    public static void uint64ToByteArrayLE(long val, byte[] out, int offset) {
+        uint32ToByteArrayLE(val, out, offset);
+        uint32ToByteArrayLE(val >>> 32, out, offset + 4);
+    }
+
+    public static void uint64ToByteStreamLE(long val, OutputStream stream) throws IOException {
+        uint32ToByteStreamLE(val, stream);
+        uint32ToByteStreamLE(val >>> 32, stream);
+    }
+
     public static void uint64ToByteStreamLE(BigInteger val, OutputStream stream) throws IOException {
         byte[] bytes = val.toByteArray();
         if (bytes.length > 8) { 
@@ -117,14 +125,9 @@ public class Utils {
      * standard procedure in BitCoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] out = new byte[32];
+        Sha256.doubleDigest(input, offset, length, out, 0);
+        return out;
     }
 
     /**
@@ -132,15 +135,9 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] out = new byte[32];
+        Sha256.doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2, out, 0);
+        return out;
     }
 
     /** Work around lack of unsigned types in Java. */
@@ -178,6 +175,10 @@ public class Utils {
                ((bytes[offset] & 0xFFL) << 24);
     }
     
+    public static long readInt64(byte[] bytes, int offset) {
+        return readUint32(bytes, offset) | (readUint32(bytes, offset + 4) << 32);
+    }
+
     public static long readUint32BE(byte[] bytes, int offset) {
         return ((bytes[offset + 0] & 0xFFL) << 24) |
                ((bytes[offset + 1] & 0xFFL) << 16) |
@@ -193,16 +194,13 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = new byte[32];
+        Sha256.hash(input, 0, input.length, sha256, 0);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /** Returns the given value in nanocoins as a 0.12 type string. */
@@ -46,6 +46,13 @@ public class VarInt {
     }
     
     public int getSizeInBytes() {
+        return sizeOf(value);
+    }
+
+    /**
+     * Returns how many bytes the given value takes up when encoded.
+     */
+    public static int sizeOf(long value) {
         // Java doesn't have the actual value of MAX_INT, as all types in Java are signed.
         if (isLessThanUnsigned(value, 253))
             return 1;
@@ -56,29 +63,39 @@ public class VarInt {
         else
             return 9;  // 1 marker + 8 data bytes
     }
-    
+
+    /**
+     * Encodes the given value into the array at the offset, which must have room for {@link #sizeOf(long)} bytes.
+     * Returns the offset just after it.
+     */
+    public static int encodeInto(long value, byte[] buf, int offset) {
+        if (isLessThanUnsigned(value, 253)) {
+            buf[offset] = (byte) value;
+            return offset + 1;
+        } else if (isLessThanUnsigned(value, 65536)) {
+            buf[offset] = (byte) 253;
+            buf[offset + 1] = (byte) (value);
+            buf[offset + 2] = (byte) (value >> 8);
+            return offset + 3;
+        } else if (isLessThanUnsigned(value, 4294967296L)) {
+            buf[offset] = (byte) 254;
+            Utils.uint32ToByteArrayLE(value, buf, offset + 1);
+            return offset + 5;
+        } else {
+            buf[offset] = (byte) 255;
+            Utils.uint32ToByteArrayLE(value, buf, offset + 1);
+            Utils.uint32ToByteArrayLE(value >>> 32, buf, offset + 5);
+            return offset + 9;
+        }
+    }
 
     public byte[] encode() {
         return encodeBE();
     }
-    
 
     public byte[] encodeBE() {
-        if (isLessThanUnsigned(value, 253)) {
-            return new byte[] { (byte)value };
-        } else if (isLessThanUnsigned(value, 65536)) {
-            return new byte[] { (byte) 253, (byte) (value), (byte) (value >> 8) };
-        } else if (isLessThanUnsigned(value, 4294967295L)) {
-            byte[] bytes = new byte[5];
-            bytes[0] = (byte) 254;
-            Utils.uint32ToByteArrayLE(value, bytes, 1);
-            return bytes;
-        } else {
-            byte[] bytes = new byte[9];
-            bytes[0] = (byte) 255;
-            Utils.uint32ToByteArrayLE(value, bytes, 1);
-            Utils.uint32ToByteArrayLE(value >>> 32, bytes, 5);
-            return bytes;
-        }
+        byte[] bytes = new byte[sizeOf(value)];
+        encodeInto(value, bytes, 0);
+        return bytes;
     }
 }
@@ -71,8 +71,8 @@ public class VersionMessage extends Message {
     @Override
     public void parse() throws ProtocolException {
         clientVersion = (int) readUint32();
-        localServices = readUint64().longValue();
-        time = readUint64().longValue();
+        localServices = readInt64();
+        time = readInt64();
         myAddr = new PeerAddress(params, bytes, cursor, 0);
         cursor += myAddr.getMessageSize();
         theirAddr = new PeerAddress(params, bytes, cursor, 0);
@@ -80,7 +80,7 @@ public class VersionMessage extends Message {
         // uint64 localHostNonce  (random data)
         // We don't care about the localhost nonce. It's used to detect connecting back to yourself in cases where
         // there are NATs and proxies in the way. However we don't listen for inbound connections so it's irrelevant.
-        readUint64();
+        readInt64();
         //   string subVer  (currently "")
         subVer = readStr();
         //   int bestHeight (size of known block chain).
@@ -113,7 +113,7 @@ public class Wallet implements Serializable {
      * Note that in the case where a transaction appears in both the best chain and a side chain as well, it is not
      * placed in this map. It's an error for a transaction to be in both the inactive pool and unspent/spent.
      */
-    private Map<Sha256Hash, Transaction> inactive;
+    Map<Sha256Hash, Transaction> inactive;
 
     /**
      * A dead transaction is one that's been overridden by a double spend. Such a transaction is pending except it
@@ -121,15 +121,34 @@ public class Wallet implements Serializable {
      * should nearly never happen in normal usage. Dead transactions can be "resurrected" by re-orgs just like any
      * other. Dead transactions are not in the pending pool.
      */
-    private Map<Sha256Hash, Transaction> dead;
+    Map<Sha256Hash, Transaction> dead;
 
     /** A list of public/private EC keys owned by this user. */
     public final ArrayList<ECKey> keychain;
 
-    private final NetworkParameters params;
+    final NetworkParameters params;
 
     transient private ArrayList<WalletEventListener> eventListeners;
 
+    // Indexes of the keychain by pubkey hash and by pubkey, so the keys for the inputs and outputs of every
+    // transaction can be found without scanning it. They cover the first indexedKeys entries of the keychain, which
+    // is public so may have had keys added to it directly; those are picked up on the next lookup.
+    transient private Map<ByteArrayKey, ECKey> keysByPubKeyHash;
+    transient private Map<ByteArrayKey, ECKey> keysByPubKey;
+    transient private int indexedKeys;
+
+    // The balances are kept up to date as transactions move between the pools and our outputs get spent, so querying
+    // them doesn't walk the whole wallet. spendableOutputs holds the spendable outputs of unspent transactions that
+    // are ours, and its total is the available balance, so coin selection only looks at coins we can actually spend.
+    // pendingBalance is the value of the outputs of pending transactions that are ours. When balancesValid is false
+    // both are worked out again on the next query, which is what happens after a re-org.
+    transient private SpendableOutputs spendableOutputs;
+    transient private long pendingBalance;
+    transient private boolean balancesValid;
+
+    // Not saved with the wallet, a loaded wallet uses the default.
+    transient private CoinSelector coinSelector;
+
     /**
      * Creates a new, empty wallet with no keys and no transactions. If you want to restore a wallet from disk instead,
      * see loadFromFile.
@@ -143,6 +162,8 @@ public class Wallet implements Serializable {
         pending = new HashMap<Sha256Hash, Transaction>();
         dead = new HashMap<Sha256Hash, Transaction>();
         eventListeners = new ArrayList<WalletEventListener>();
+        createKeyIndexes();
+        recalculateBalances();
     }
 
     /**
@@ -167,21 +188,72 @@ public class Wallet implements Serializable {
         oos.close();
     }
 
+    /**
+     * Saves the wallet to the given file in the compact binary format, which is smaller and much faster to load than
+     * Java serialization. {@link #loadFromFile(File)} reads either format.
+     */
+    public synchronized void saveToCompactFile(File f) throws IOException {
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(f);
+            saveToCompactStream(stream);
+        } finally {
+            if (stream != null) stream.close();
+        }
+    }
 
     /**
-     * Returns a wallet deserialized from the given file.
+     * Saves the wallet to the given stream in the compact binary format. The stream is flushed but not closed.
+     */
+    public synchronized void saveToCompactStream(OutputStream stream) throws IOException {
+        WalletSerializer.write(this, stream);
+    }
+
+    /**
+     * Returns a wallet deserialized from the given file, which can be either in the compact binary format or a Java
+     * serialized wallet.
      */
     public static Wallet loadFromFile(File f) throws IOException {
         return loadFromFileStream(new FileInputStream(f));
     }
 
     /**
-     * Returns a wallet deserialied from the given file input stream.
+     * Returns a wallet deserialied from the given file input stream, which can be either in the compact binary format
+     * or a Java serialized wallet. The stream is closed.
      */
     public static Wallet loadFromFileStream(FileInputStream f) throws IOException {
+        return loadFromStream(f);
+    }
+
+    /**
+     * Returns a wallet read from the given stream, which can be either in the compact binary format or a Java
+     * serialized wallet. The stream is closed.
+     */
+    public static Wallet loadFromStream(InputStream in) throws IOException {
+        return loadFromStream(in, null);
+    }
+
+    /**
+     * Returns a wallet read from the given stream, which can be either in the compact binary format or a Java
+     * serialized wallet. The stream is closed.<p>
+     *
+     * A compact wallet only records which network it is for by its genesis block, so loading one saved on a network
+     * other than the standard ones needs its parameters passed in here. An IOException is thrown if the wallet was
+     * saved on a different network. If params is null the wallet can be for any of the standard networks. A Java
+     * serialized wallet carries its own parameters and params is not used.
+     */
+    public static Wallet loadFromStream(InputStream in, NetworkParameters params) throws IOException {
+        InputStream stream = new BufferedInputStream(in);
+        if (WalletSerializer.isCompactWallet(stream)) {
+            try {
+                return WalletSerializer.read(stream, params);
+            } finally {
+                stream.close();
+            }
+        }
         ObjectInputStream ois = null;
         try {
-            ois = new ObjectInputStream(f);
+            ois = new ObjectInputStream(stream);
             return (Wallet) ois.readObject();
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
@@ -193,6 +265,43 @@ public class Wallet implements Serializable {
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         eventListeners = new ArrayList<WalletEventListener>();
+        createIndexes();
+    }
+
+    /** Builds the key indexes and the spendable outputs for a wallet that has just been loaded. */
+    void createIndexes() {
+        createKeyIndexes();
+        recalculateBalances();
+    }
+
+    private void createKeyIndexes() {
+        keysByPubKeyHash = new HashMap<ByteArrayKey, ECKey>();
+        keysByPubKey = new HashMap<ByteArrayKey, ECKey>();
+        indexedKeys = 0;
+        updateKeyIndexes();
+    }
+
+    /** Adds any keys in the keychain that aren't indexed yet to the indexes. */
+    private void updateKeyIndexes() {
+        if (indexedKeys > keychain.size()) {
+            // Keys were removed from the keychain behind our back, start again.
+            createKeyIndexes();
+            return;
+        }
+        if (indexedKeys < keychain.size()) {
+            // Outputs we already have may be to the new keys.
+            balancesValid = false;
+        }
+        for (; indexedKeys < keychain.size(); indexedKeys++) {
+            ECKey key = keychain.get(indexedKeys);
+            // If the same key appears twice, the first one wins as it did when the keychain was scanned.
+            ByteArrayKey hash = new ByteArrayKey(key.getPubKeyHash());
+            if (!keysByPubKeyHash.containsKey(hash))
+                keysByPubKeyHash.put(hash, key);
+            ByteArrayKey pub = new ByteArrayKey(key.getPubKey());
+            if (!keysByPubKey.containsKey(pub))
+                keysByPubKey.put(pub, key);
+        }
     }
 
     /**
@@ -214,26 +323,73 @@ public class Wallet implements Serializable {
      * block might change which chain is best causing a reorganize. A re-org can totally change our balance!
      */
     synchronized void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType) throws VerificationException, ScriptException {
-        receive(tx, block, blockType, false);
+        BigInteger prevBalance = getBalance();
+        long valueDifference = receive(tx, block, blockType, false);
+        log.info("Balance is now: " + getBalanceAmount(BalanceType.AVAILABLE));
+        if (blockType == BlockChain.NewBlockType.BEST_CHAIN && valueDifference > 0)
+            invokeOnCoinsReceived(tx, prevBalance);
     }
 
-    private synchronized void receive(Transaction tx, StoredBlock block,
-                                      BlockChain.NewBlockType blockType, boolean reorg) throws VerificationException, ScriptException {
-        // Runs in a peer thread.
+    /**
+     * Called by the {@link BlockChain} when a batch of blocks on the best chain was connected in one go. Each
+     * transaction is processed as {@link #receive(Transaction, StoredBlock, BlockChain.NewBlockType)} would, but the
+     * event listeners are only told once at the end of the batch: onCoinsReceived is passed the last transaction
+     * that sent us coins, the balance from before the batch and the balance after it.<p>
+     *
+     * blocks and transactions are parallel lists giving the transactions relevant to us from each block. A
+     * transaction with a script we don't understand is logged and the rest of its block is skipped, as receive does.
+     */
+    synchronized void receiveAll(List<StoredBlock> blocks, List<List<Transaction>> transactions)
+            throws VerificationException {
         BigInteger prevBalance = getBalance();
+        Transaction lastReceived = null;
+        for (int i = 0; i < blocks.size(); i++) {
+            try {
+                for (Transaction tx : transactions.get(i)) {
+                    if (receive(tx, blocks.get(i), BlockChain.NewBlockType.BEST_CHAIN, false) > 0)
+                        lastReceived = tx;
+                }
+            } catch (ScriptException e) {
+                // We don't want scripts we don't understand to break the block chain so just note that this tx was
+                // not scanned here and continue.
+                log.warn("Failed to parse a script: " + e.toString());
+            }
+        }
+        log.info("Balance is now: " + getBalanceAmount(BalanceType.AVAILABLE));
+        if (lastReceived != null)
+            invokeOnCoinsReceived(lastReceived, prevBalance);
+    }
+
+    private void invokeOnCoinsReceived(Transaction tx, BigInteger prevBalance) {
+        // Inform anyone interested that we have new coins. Note: we may be re-entered by the event listener,
+        // so we must not make assumptions about our state after this loop returns! For example,
+        // the balance we just received might already be spent!
+        for (WalletEventListener l : eventListeners) {
+            synchronized (l) {
+                l.onCoinsReceived(this, tx, prevBalance, getBalance());
+            }
+        }
+    }
 
+    /**
+     * Does the book-keeping for a received transaction without telling the event listeners, and returns how much
+     * it changed our balance by.
+     */
+    private synchronized long receive(Transaction tx, StoredBlock block,
+                                      BlockChain.NewBlockType blockType, boolean reorg) throws VerificationException, ScriptException {
+        // Runs in a peer thread. During a re-org the balances are worked out once at the end.
         Sha256Hash txHash = tx.getHash();
 
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
-        BigInteger valueSentFromMe = tx.getValueSentFromMe(this);
-        BigInteger valueSentToMe = tx.getValueSentToMe(this);
-        BigInteger valueDifference = valueSentToMe.subtract(valueSentFromMe);
+        long valueSentFromMe = tx.getNanocoinsSentFromMe(this);
+        long valueSentToMe = tx.getNanocoinsSentToMe(this, true);
+        long valueDifference = valueSentToMe - valueSentFromMe;
 
         if (!reorg) {
             log.info("Received tx{} for {} BTC: {}", new Object[] { sideChain ? " on a side chain" : "",
-                    bitcoinValueToFriendlyString(valueDifference), tx.getHashAsString()});
+                    BitCoin.toFriendlyString(valueDifference), tx.getHashAsString()});
         }
 
         // If this transaction is already in the wallet we may need to move it into a different pool. At the very
@@ -241,13 +397,14 @@ public class Wallet implements Serializable {
         Transaction wtx = null;
         if ((wtx = pending.remove(txHash)) != null) {
             log.info("  <-pending");
+            pendingBalance -= valueToMe(wtx);
             // A transaction we created appeared in a block. Probably this is a spend we broadcast that has been
             // accepted by the network.
             //
             // Mark the tx as appearing in this block so we can find it later after a re-org.
             wtx.addBlockAppearance(block);
             if (bestChain) {
-                if (valueSentToMe.equals(BigInteger.ZERO)) {
+                if (valueSentToMe == 0) {
                     // There were no change transactions so this tx is fully spent.
                     log.info("  ->spent");
                     boolean alreadyPresent = spent.put(wtx.getHash(), wtx) != null;
@@ -258,6 +415,7 @@ public class Wallet implements Serializable {
                     log.info("  ->unspent");
                     boolean alreadyPresent = unspent.put(wtx.getHash(), wtx) != null;
                     assert !alreadyPresent : "TX in both pending and unspent pools";
+                    addSpendableOutputs(wtx);
                 }
             } else if (sideChain) {
                 // The transaction was accepted on an inactive side chain, but not yet by the best chain.
@@ -273,6 +431,7 @@ public class Wallet implements Serializable {
                     log.info("Saw a transaction be incorporated into multiple independent side chains");
                 // Put it back into the pending pool, because 'pending' means 'waiting to be included in best chain'.
                 pending.put(wtx.getHash(), wtx);
+                pendingBalance += valueToMe(wtx);
             }
         } else {
             if (!reorg) {
@@ -289,18 +448,7 @@ public class Wallet implements Serializable {
             }
         }
 
-        log.info("Balance is now: " + bitcoinValueToFriendlyString(getBalance()));
-
-        // Inform anyone interested that we have new coins. Note: we may be re-entered by the event listener,
-        // so we must not make assumptions about our state after this loop returns! For example,
-        // the balance we just received might already be spent!
-        if (!reorg && bestChain && valueDifference.compareTo(BigInteger.ZERO) > 0) {
-            for (WalletEventListener l : eventListeners) {
-                synchronized (l) {
-                    l.onCoinsReceived(this, tx, prevBalance, getBalance());
-                }
-            }
-        }
+        return valueDifference;
     }
 
     /**
@@ -311,11 +459,12 @@ public class Wallet implements Serializable {
         // This TX may spend our existing outputs even though it was not pending. This can happen in unit
         // tests and if keys are moved between wallets.
         updateForSpends(tx);
-        if (!tx.getValueSentToMe(this).equals(BigInteger.ZERO)) {
+        if (tx.getNanocoinsSentToMe(this, true) != 0) {
             // It's sending us coins.
             log.info("  new tx ->unspent");
             boolean alreadyPresent = unspent.put(tx.getHash(), tx) != null;
             assert !alreadyPresent : "TX was received twice";
+            addSpendableOutputs(tx);
         } else {
             // It spent some of our coins and did not send us any.
             log.info("  new tx ->spent");
@@ -355,6 +504,7 @@ public class Wallet implements Serializable {
                     log.info("Saw double spend from chain override pending tx {}", connected.getHashAsString());
                     log.info("  <-pending ->dead");
                     pending.remove(connected.getHash());
+                    pendingBalance -= valueToMe(connected);
                     dead.put(connected.getHash(), connected);
                     // Now forcibly change the connection.
                     input.connect(unspent, true);
@@ -369,8 +519,9 @@ public class Wallet implements Serializable {
                 // Otherwise we saw a transaction spend our coins, but we didn't try and spend them ourselves yet.
                 // The outputs are already marked as spent by the connect call above, so check if there are any more for
                 // us to use. Move if not.
+                outputSpent(input.outpoint.getConnectedOutput());
                 Transaction connected = input.outpoint.fromTx;
-                if (connected.getValueSentToMe(this, false).equals(BigInteger.ZERO)) {
+                if (connected.getNanocoinsSentToMe(this, false) == 0) {
                     // There's nothing left I can spend in this transaction.
                     if (unspent.remove(connected.getHash()) != null) {
                         log.info("  prevtx <-unspent");
@@ -412,9 +563,76 @@ public class Wallet implements Serializable {
         for (TransactionInput input : tx.inputs) {
             TransactionOutput connectedOutput = input.outpoint.getConnectedOutput();
             connectedOutput.markAsSpent(input);
+            outputSpent(connectedOutput);
         }
         // Add to the pending pool. It'll be moved out once we receive this transaction on the best chain.
         pending.put(tx.getHash(), tx);
+        pendingBalance += valueToMe(tx);
+    }
+
+    /** Takes an output that has just been marked as spent out of the spendable outputs, if it was one. */
+    private void outputSpent(TransactionOutput output) {
+        TransactionOutPoint outpoint = new TransactionOutPoint(params, output.getIndex(), output.parentTransaction);
+        spendableOutputs.remove(outpoint);
+    }
+
+    /** Adds the outputs of tx, which has just gone into the unspent pool, that are ours and can still be spent. */
+    private void addSpendableOutputs(Transaction tx) {
+        addSpendableOutputs(spendableOutputs, tx);
+    }
+
+    private void addSpendableOutputs(SpendableOutputs outputs, Transaction tx) {
+        for (int i = 0; i < tx.outputs.size(); i++) {
+            TransactionOutput output = tx.outputs.get(i);
+            if (!output.isAvailableForSpending() || !output.isMine(this)) continue;
+            outputs.add(new TransactionOutPoint(params, i, tx), output);
+        }
+    }
+
+    /** Returns the height of the lowest block tx appeared in, or Integer.MAX_VALUE if we don't know of any. */
+    private static int firstAppearance(Transaction tx) {
+        int height = Integer.MAX_VALUE;
+        if (tx.getAppearsIn() != null) {
+            for (StoredBlock block : tx.getAppearsIn()) {
+                if (block != null)
+                    height = Math.min(height, block.getHeight());
+            }
+        }
+        return height;
+    }
+
+    /** Returns the value of the outputs of tx that are ours. */
+    private long valueToMe(Transaction tx) {
+        return tx.getNanocoinsSentToMe(this, true);
+    }
+
+    /** Works out the spendable outputs and both balances from scratch. */
+    private void recalculateBalances() {
+        spendableOutputs = calculateSpendableOutputs();
+        pendingBalance = calculatePendingBalance();
+        balancesValid = true;
+    }
+
+    private SpendableOutputs calculateSpendableOutputs() {
+        // Put the outputs back oldest first, going by the first block each transaction appeared in.
+        List<Transaction> txns = new ArrayList<Transaction>(unspent.values());
+        Collections.sort(txns, new Comparator<Transaction>() {
+            public int compare(Transaction a, Transaction b) {
+                int ha = firstAppearance(a), hb = firstAppearance(b);
+                return ha < hb ? -1 : (ha == hb ? 0 : 1);
+            }
+        });
+        SpendableOutputs outputs = new SpendableOutputs();
+        for (Transaction tx : txns)
+            addSpendableOutputs(outputs, tx);
+        return outputs;
+    }
+
+    private long calculatePendingBalance() {
+        long balance = 0;
+        for (Transaction tx : pending.values())
+            balance += valueToMe(tx);
+        return balance;
     }
 
     /**
@@ -488,39 +706,40 @@ public class Wallet implements Serializable {
      * @return a new {@link Transaction} or null if we cannot afford this send.
      */
     synchronized Transaction createSend(Address address, BigInteger nanocoins, Address changeAddress) {
-        log.info("Creating send tx to " + address.toString() + " for " +
-                bitcoinValueToFriendlyString(nanocoins));
-        // To send money to somebody else, we need to do gather up transactions with unspent outputs until we have
-        // sufficient value. Many coin selection algorithms are possible, we use a simple but suboptimal one.
-        // TODO: Sort coins so we use the smallest first, to combat wallet fragmentation and reduce fees.
-        BigInteger valueGathered = BigInteger.ZERO;
-        List<TransactionOutput> gathered = new LinkedList<TransactionOutput>();
-        for (Transaction tx : unspent.values()) {
-            for (TransactionOutput output : tx.outputs) {
-                if (!output.isAvailableForSpending()) continue;
-                if (!output.isMine(this)) continue;
-                gathered.add(output);
-                valueGathered = valueGathered.add(output.getValue());
-            }
-            if (valueGathered.compareTo(nanocoins) >= 0) break;
-        }
-        // Can we afford this?
-        if (valueGathered.compareTo(nanocoins) < 0) {
+        return createSend(address, BitCoin.valueOf(nanocoins), changeAddress);
+    }
+
+    synchronized Transaction createSend(Address address, BitCoin amount, Address changeAddress) {
+        log.info("Creating send tx to " + address.toString() + " for " + amount);
+        long nanocoins = amount.longValue();
+        // To send money to somebody else, we need to do gather up spendable outputs until we have sufficient value.
+        // Which ones is up to the coin selector. First check we can afford this at all.
+        SpendableOutputs outputs = getSpendableOutputs();
+        if (outputs.getTotal() < nanocoins) {
             log.info("Insufficient value in wallet for send, missing " +
-                    bitcoinValueToFriendlyString(nanocoins.subtract(valueGathered)));
+                    BitCoin.toFriendlyString(nanocoins - outputs.getTotal()));
             // TODO: Should throw an exception here.
             return null;
         }
+        List<TransactionOutput> gathered = getCoinSelector().select(nanocoins, outputs);
+        if (gathered == null) {
+            log.info("Coin selector could not find outputs to pay for the send");
+            return null;
+        }
+        long valueGathered = 0;
+        for (TransactionOutput output : gathered)
+            valueGathered += output.getNanocoins();
         assert gathered.size() > 0;
+        assert valueGathered >= nanocoins : "Coin selector did not gather enough value";
         Transaction sendTx = new Transaction(params);
-        sendTx.addOutput(new TransactionOutput(params, sendTx, nanocoins, address));
-        BigInteger change = valueGathered.subtract(nanocoins);
-        if (change.compareTo(BigInteger.ZERO) > 0) {
+        sendTx.addOutput(new TransactionOutput(params, sendTx, amount, address));
+        long change = valueGathered - nanocoins;
+        if (change > 0) {
             // The value of the inputs is greater than what we want to send. Just like in real life then,
             // we need to take back some coins ... this is called "change". Add another output that sends the change
             // back to us.
-            log.info("  with " + bitcoinValueToFriendlyString(change) + " coins change");
-            sendTx.addOutput(new TransactionOutput(params, sendTx, change, changeAddress));
+            log.info("  with " + BitCoin.toFriendlyString(change) + " coins change");
+            sendTx.addOutput(new TransactionOutput(params, sendTx, BitCoin.valueOf(change), changeAddress));
         }
         for (TransactionOutput output : gathered) {
             sendTx.addInput(output);
@@ -538,12 +757,27 @@ public class Wallet implements Serializable {
         return sendTx;
     }
 
+    /**
+     * Sets the strategy createSend uses to pick which outputs to spend. By default that is a
+     * {@link LargestFirstCoinSelector}. The selector is not saved with the wallet.
+     */
+    public synchronized void setCoinSelector(CoinSelector coinSelector) {
+        this.coinSelector = coinSelector;
+    }
+
+    public synchronized CoinSelector getCoinSelector() {
+        if (coinSelector == null)
+            coinSelector = new LargestFirstCoinSelector();
+        return coinSelector;
+    }
+
     /**
      * Adds the given ECKey to the wallet. There is currently no way to delete keys (that would result in coin loss).
      */
     public synchronized void addKey(ECKey key) {
         assert !keychain.contains(key);
         keychain.add(key);
+        updateKeyIndexes();
     }
 
     /**
@@ -552,10 +786,8 @@ public class Wallet implements Serializable {
      * @return ECKey object or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        for (ECKey key : keychain) {
-            if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-        }
-        return null;
+        updateKeyIndexes();
+        return keysByPubKeyHash.get(new ByteArrayKey(pubkeyHash));
     }
 
     /** Returns true if this wallet contains a public key which hashes to the given hash. */
@@ -568,10 +800,8 @@ public class Wallet implements Serializable {
      * @return ECKey or null if no such key was found.
      */
     public synchronized ECKey findKeyFromPubKey(byte[] pubkey) {
-        for (ECKey key : keychain) {
-            if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-        }
-        return null;
+        updateKeyIndexes();
+        return keysByPubKey.get(new ByteArrayKey(pubkey));
     }
 
     /** Returns true if this wallet contains a keypair with the given public key. */
@@ -618,26 +848,42 @@ public class Wallet implements Serializable {
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public synchronized BigInteger getBalance(BalanceType balanceType) {
-        BigInteger available = BigInteger.ZERO;
-        for (Transaction tx : unspent.values()) {
-            for (TransactionOutput output : tx.outputs) {
-                if (!output.isMine(this)) continue;
-                if (!output.isAvailableForSpending()) continue;
-                available = available.add(output.getValue());
-            }
-        }
+        return getBalanceAmount(balanceType).toBigInteger();
+    }
+
+    /**
+     * Returns the balance of this wallet as calculated by the provided balanceType, as a {@link BitCoin}.
+     */
+    public synchronized BitCoin getBalanceAmount(BalanceType balanceType) {
+        getSpendableOutputs();
         if (balanceType == BalanceType.AVAILABLE)
-            return available;
+            return BitCoin.valueOf(spendableOutputs.getTotal());
         assert balanceType == BalanceType.ESTIMATED;
         // Now add back all the pending outputs to assume the transaction goes through.
-        BigInteger estimated = available;
-        for (Transaction tx : pending.values()) {
-            for (TransactionOutput output : tx.outputs) {
-                if (!output.isMine(this)) continue;
-                estimated = estimated.add(output.getValue());
-            }
-        }
-        return estimated;
+        return BitCoin.valueOf(spendableOutputs.getTotal() + pendingBalance);
+    }
+
+    /**
+     * Returns the outputs that are ours and can be spent, by their outpoint, bringing them and the balances up to date
+     * first if need be.
+     */
+    private SpendableOutputs getSpendableOutputs() {
+        // Keys added to the keychain directly invalidate the balances.
+        updateKeyIndexes();
+        if (!balancesValid)
+            recalculateBalances();
+        return spendableOutputs;
+    }
+
+    /**
+     * Returns true if the balances and spendable outputs kept up to date as transactions arrive match what is
+     * worked out from the transaction pools from scratch. This walks the whole wallet, so it is only for tests.
+     */
+    synchronized boolean isConsistent() {
+        SpendableOutputs outputs = getSpendableOutputs();
+        SpendableOutputs recalculated = calculateSpendableOutputs();
+        return outputs.getTotal() == recalculated.getTotal() && pendingBalance == calculatePendingBalance() &&
+               outputs.getOutPoints().equals(recalculated.getOutPoints());
     }
 
     @Override
@@ -751,6 +997,9 @@ public class Wallet implements Serializable {
         log.info(affectedUs ? "Re-org affected our transactions" : "Re-org had no effect on our transactions");
         if (!affectedUs) return;
 
+        // Transactions are about to be moved around wholesale, so the balances are worked out again afterwards.
+        balancesValid = false;
+
         // For simplicity we will reprocess every transaction to ensure it's in the right bucket and has the right
         // connections. Attempting to update each one with minimal work is possible but complex and was leading to
         // edge cases that were hard to fix. As re-orgs are rare the amount of work this implies should be manageable
@@ -841,7 +1090,8 @@ public class Wallet implements Serializable {
             reprocessTxAfterReorg(pool, tx);
         }
 
-        log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(getBalance()));
+        recalculateBalances();
+        log.info("post-reorg balance is {}", getBalanceAmount(BalanceType.AVAILABLE));
 
         // Inform event listeners that a re-org took place.
         for (WalletEventListener l : eventListeners) {
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * Reads and writes wallets in a compact binary format, which is much smaller and faster to load than Java
+ * serialization of the whole object graph. Transactions are kept in the same wire form they are sent around the
+ * network in, and the links between them that Java serialization would record as object references are written as
+ * indexes instead. The format is:<p>
+ *
+ * <pre>
+ *   magic "bjwf", version (uint32), genesis block hash of the network
+ *   key count (varint), then for each key: private key, public key (varint length then bytes)
+ *   block count (varint), then for each block the wallet transactions appeared in: 80 byte header, chain work
+ *       (varint length then bytes), height (uint32)
+ *   transaction count (varint), then for each transaction:
+ *       the pools it is in (one byte of flags), the transaction in wire form (varint length then bytes),
+ *       the blocks it appeared in (varint count then varint indexes into the block table),
+ *       for each input, whether it is connected to the output it spends (one byte),
+ *       for each output, whether it is spent (varint) and by which transaction and input
+ * </pre>
+ *
+ * Blocks are written once however many transactions appeared in them. They are kept in full rather than just by
+ * hash as a re-org compares them against the blocks of the chain, including the chain work and height. Loading reads
+ * the stream once from start to finish, decoding each transaction straight from its wire form as it is reached.
+ */
+class WalletSerializer {
+    static final byte[] MAGIC = { 'b', 'j', 'w', 'f' };
+    static final int VERSION = 1;
+
+    // The pools a transaction is in. A transaction can be in more than one, see Wallet.
+    private static final int UNSPENT = 1;
+    private static final int SPENT = 2;
+    private static final int PENDING = 4;
+    private static final int INACTIVE = 8;
+    private static final int DEAD = 16;
+
+    // How an output is recorded. Outputs spent by a transaction in the wallet are recorded as SPENT_BY plus the index
+    // of that transaction, followed by the index of the input.
+    private static final int OUTPUT_AVAILABLE = 0;
+    private static final int OUTPUT_SPENT = 1;
+    private static final int OUTPUT_SPENT_BY = 2;
+
+    /** Writes the wallet to the stream. The caller must hold the wallet lock. */
+    static void write(Wallet wallet, OutputStream out) throws IOException {
+        OutputStream stream = new BufferedOutputStream(out, 65536);
+        stream.write(MAGIC);
+        Utils.uint32ToByteStreamLE(VERSION, stream);
+        stream.write(wallet.params.genesisBlock.getHash().getBytes());
+
+        writeVarInt(wallet.keychain.size(), stream);
+        for (ECKey key : wallet.keychain) {
+            writeBytes(key.getPrivKey().toByteArray(), stream);
+            writeBytes(key.getPubKey(), stream);
+        }
+
+        // Number every transaction and the blocks they appeared in.
+        LinkedHashMap<Sha256Hash, Transaction> txns = new LinkedHashMap<Sha256Hash, Transaction>();
+        Map<Sha256Hash, Integer> pools = new HashMap<Sha256Hash, Integer>();
+        addPool(wallet.unspent, UNSPENT, txns, pools);
+        addPool(wallet.spent, SPENT, txns, pools);
+        addPool(wallet.pending, PENDING, txns, pools);
+        addPool(wallet.inactive, INACTIVE, txns, pools);
+        addPool(wallet.dead, DEAD, txns, pools);
+        Map<Sha256Hash, Integer> txIndexes = new HashMap<Sha256Hash, Integer>();
+        LinkedHashMap<StoredBlock, Integer> blocks = new LinkedHashMap<StoredBlock, Integer>();
+        for (Transaction tx : txns.values()) {
+            txIndexes.put(tx.getHash(), txIndexes.size());
+            if (tx.getAppearsIn() == null) continue;
+            for (StoredBlock block : tx.getAppearsIn()) {
+                if (block != null && !blocks.containsKey(block))
+                    blocks.put(block, blocks.size());
+            }
+        }
+
+        writeVarInt(blocks.size(), stream);
+        for (StoredBlock block : blocks.keySet()) {
+            stream.write(block.getHeader().cloneAsHeader().bitcoinSerialize());
+            writeBytes(block.getChainWork().toByteArray(), stream);
+            Utils.uint32ToByteStreamLE(block.getHeight(), stream);
+        }
+
+        writeVarInt(txns.size(), stream);
+        for (Transaction tx : txns.values()) {
+            stream.write(pools.get(tx.getHash()));
+            writeBytes(tx.bitcoinSerialize(), stream);
+            List<Integer> appearsIn = new ArrayList<Integer>();
+            if (tx.getAppearsIn() != null) {
+                for (StoredBlock block : tx.getAppearsIn()) {
+                    if (block != null)
+                        appearsIn.add(blocks.get(block));
+                }
+            }
+            writeVarInt(appearsIn.size(), stream);
+            for (int index : appearsIn)
+                writeVarInt(index, stream);
+            for (TransactionInput input : tx.inputs)
+                stream.write(input.outpoint.fromTx != null ? 1 : 0);
+            for (TransactionOutput output : tx.outputs) {
+                TransactionInput spentBy = output.getSpentBy();
+                Integer spender = spentBy == null ? null : txIndexes.get(spentBy.parentTransaction.getHash());
+                if (output.isAvailableForSpending()) {
+                    writeVarInt(OUTPUT_AVAILABLE, stream);
+                } else if (spender == null) {
+                    writeVarInt(OUTPUT_SPENT, stream);
+                } else {
+                    writeVarInt(OUTPUT_SPENT_BY + spender, stream);
+                    writeVarInt(spentBy.parentTransaction.inputs.indexOf(spentBy), stream);
+                }
+            }
+        }
+        stream.flush();
+    }
+
+    private static void addPool(Map<Sha256Hash, Transaction> pool, int flag, Map<Sha256Hash, Transaction> txns,
+                                Map<Sha256Hash, Integer> pools) {
+        for (Map.Entry<Sha256Hash, Transaction> entry : pool.entrySet()) {
+            Integer flags = pools.get(entry.getKey());
+            if (flags == null) {
+                txns.put(entry.getKey(), entry.getValue());
+                flags = 0;
+            }
+            pools.put(entry.getKey(), flags | flag);
+        }
+    }
+
+    /**
+     * Returns true if the stream holds a wallet in this format, leaving the stream where it was. The stream must
+     * support mark and reset.
+     */
+    static boolean isCompactWallet(InputStream stream) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        stream.mark(magic.length);
+        try {
+            return new DataInputStream(stream).read(magic) == magic.length && Arrays.equals(magic, MAGIC);
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /**
+     * Reads a wallet saved on the given network, which is checked against the genesis block in the file. If params
+     * is null the wallet can be for any of the standard networks.
+     */
+    static Wallet read(InputStream in, NetworkParameters params) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(in, 65536));
+        byte[] magic = new byte[MAGIC.length];
+        stream.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a wallet file");
+        byte[] buf = new byte[4];
+        stream.readFully(buf);
+        long version = Utils.readUint32(buf, 0);
+        if (version != VERSION)
+            throw new IOException("Unknown wallet file version " + version);
+        byte[] genesisHash = new byte[32];
+        stream.readFully(genesisHash);
+        if (params == null) {
+            params = findNetwork(new Sha256Hash(genesisHash));
+        } else if (!params.genesisBlock.getHash().equals(new Sha256Hash(genesisHash))) {
+            throw new IOException("Wallet file is for the network with genesis block " + new Sha256Hash(genesisHash) +
+                                  ", not " + params.genesisBlock.getHash());
+        }
+
+        Wallet wallet = new Wallet(params);
+        long numKeys = readVarInt(stream);
+        for (long i = 0; i < numKeys; i++) {
+            BigInteger priv = new BigInteger(readBytes(stream));
+            wallet.keychain.add(new ECKey(priv, readBytes(stream)));
+        }
+
+        // The counts come from the file, so the tables grow as entries are actually read rather than being sized up
+        // front. A corrupt count then runs into the end of the stream instead of allocating huge arrays.
+        int numBlocks = readCount(stream);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        byte[] header = new byte[Block.HEADER_SIZE];
+        for (int i = 0; i < numBlocks; i++) {
+            stream.readFully(header);
+            BigInteger chainWork = new BigInteger(readBytes(stream));
+            stream.readFully(buf);
+            try {
+                blocks.add(new StoredBlock(new Block(params, header.clone()), chainWork, (int) Utils.readUint32(buf, 0)));
+            } catch (ProtocolException e) {
+                throw new IOException("Bad block in wallet file: " + e.getMessage());
+            }
+        }
+
+        // The transactions that spend outputs may come after them, so connections are made once all are read.
+        int numTxns = readCount(stream);
+        List<Transaction> txns = new ArrayList<Transaction>();
+        List<boolean[]> connected = new ArrayList<boolean[]>();
+        List<long[]> outputStates = new ArrayList<long[]>();
+        for (int i = 0; i < numTxns; i++) {
+            int flags = stream.readUnsignedByte();
+            Transaction tx;
+            try {
+                tx = new Transaction(params, readBytes(stream));
+            } catch (ProtocolException e) {
+                throw new IOException("Bad transaction in wallet file: " + e.getMessage());
+            }
+            txns.add(tx);
+            long numAppearances = readVarInt(stream);
+            for (long j = 0; j < numAppearances; j++)
+                tx.addBlockAppearance(blocks.get(readIndex(stream, numBlocks)));
+            boolean[] inputsConnected = new boolean[tx.inputs.size()];
+            for (int j = 0; j < inputsConnected.length; j++)
+                inputsConnected[j] = stream.readByte() == 1;
+            connected.add(inputsConnected);
+            // Two entries per output: the state and the spending input.
+            long[] states = new long[tx.outputs.size() * 2];
+            for (int j = 0; j < tx.outputs.size(); j++) {
+                long state = readVarInt(stream);
+                states[j * 2] = state;
+                if (state >= OUTPUT_SPENT_BY)
+                    states[j * 2 + 1] = readVarInt(stream);
+            }
+            outputStates.add(states);
+            Sha256Hash hash = tx.getHash();
+            if ((flags & UNSPENT) != 0) wallet.unspent.put(hash, tx);
+            if ((flags & SPENT) != 0) wallet.spent.put(hash, tx);
+            if ((flags & PENDING) != 0) wallet.pending.put(hash, tx);
+            if ((flags & INACTIVE) != 0) wallet.inactive.put(hash, tx);
+            if ((flags & DEAD) != 0) wallet.dead.put(hash, tx);
+        }
+
+        Map<Sha256Hash, Transaction> byHash = new HashMap<Sha256Hash, Transaction>();
+        for (Transaction tx : txns)
+            byHash.put(tx.getHash(), tx);
+        for (int i = 0; i < numTxns; i++) {
+            Transaction tx = txns.get(i);
+            boolean[] inputsConnected = connected.get(i);
+            long[] states = outputStates.get(i);
+            for (int j = 0; j < inputsConnected.length; j++) {
+                if (inputsConnected[j]) {
+                    TransactionOutPoint outpoint = tx.inputs.get(j).outpoint;
+                    outpoint.fromTx = byHash.get(outpoint.hash);
+                }
+            }
+            for (int j = 0; j < tx.outputs.size(); j++) {
+                long state = states[j * 2];
+                if (state == OUTPUT_AVAILABLE) continue;
+                TransactionInput spentBy = null;
+                if (state >= OUTPUT_SPENT_BY) {
+                    if (state - OUTPUT_SPENT_BY >= numTxns)
+                        throw new IOException("Bad transaction index in wallet file");
+                    Transaction spender = txns.get((int) (state - OUTPUT_SPENT_BY));
+                    long input = states[j * 2 + 1];
+                    if (input >= spender.inputs.size())
+                        throw new IOException("Bad input index in wallet file");
+                    spentBy = spender.inputs.get((int) input);
+                }
+                tx.outputs.get(j).markAsSpent(spentBy);
+            }
+        }
+        wallet.createIndexes();
+        return wallet;
+    }
+
+    private static NetworkParameters findNetwork(Sha256Hash genesisHash) throws IOException {
+        NetworkParameters[] networks = { NetworkParameters.prodNet(), NetworkParameters.testNet(),
+                                         NetworkParameters.unitTests() };
+        for (NetworkParameters params : networks) {
+            if (params.genesisBlock.getHash().equals(genesisHash))
+                return params;
+        }
+        throw new IOException("Wallet file is for an unknown network with genesis block " + genesisHash);
+    }
+
+    private static void writeVarInt(long value, OutputStream stream) throws IOException {
+        stream.write(new VarInt(value).encode());
+    }
+
+    private static void writeBytes(byte[] bytes, OutputStream stream) throws IOException {
+        writeVarInt(bytes.length, stream);
+        stream.write(bytes);
+    }
+
+    private static long readVarInt(DataInputStream stream) throws IOException {
+        byte[] buf = new byte[9];
+        buf[0] = stream.readByte();
+        int first = 0xFF & buf[0];
+        int size = first < 253 ? 1 : (first == 253 ? 3 : (first == 254 ? 5 : 9));
+        stream.readFully(buf, 1, size - 1);
+        return new VarInt(buf, 0).value;
+    }
+
+    private static byte[] readBytes(DataInputStream stream) throws IOException {
+        long length = readVarInt(stream);
+        if (length < 0 || length > Message.MAX_SIZE)
+            throw new IOException("Bad length in wallet file: " + length);
+        byte[] bytes = new byte[(int) length];
+        stream.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readCount(DataInputStream stream) throws IOException {
+        long count = readVarInt(stream);
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new IOException("Bad count in wallet file: " + count);
+        return (int) count;
+    }
+
+    private static int readIndex(DataInputStream stream, int size) throws IOException {
+        long index = readVarInt(stream);
+        if (index < 0 || index >= size)
+            throw new IOException("Bad index in wallet file: " + index);
+        return (int) index;
+    }
+}
@@ -19,6 +19,8 @@ package com.google.bitcoin.store;
 import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 
+import java.util.List;
+
 /**
  * An implementor of BlockStore saves StoredBlock objects to disk. Different implementations store them in
  * different ways. An in-memory implementation (MemoryBlockStore) exists for unit testing but real apps will want to
@@ -37,6 +39,12 @@ public interface BlockStore {
      */
     void put(StoredBlock block) throws BlockStoreException;
 
+    /**
+     * Saves the given blocks in order, with the same effect as calling {@link #put(StoredBlock)} for each of them.
+     * Stores that write to disk do this as a single append.
+     */
+    void putAll(List<StoredBlock> blocks) throws BlockStoreException;
+
     /**
      * Returns the StoredBlock given a hash. The returned values block.getHash() method will be equal to the
      * parameter. If no such block is found, returns null.
@@ -52,4 +60,11 @@ public interface BlockStore {
      * Sets the {@link StoredBlock} that represents the top of the chain of greatest total work.
      */
     void setChainHead(StoredBlock chainHead) throws BlockStoreException;
+
+    /**
+     * Returns the {@link StoredBlock} at the given height on the chain ending at the current chain head, or null if
+     * the height is negative or above the chain head. Stores keep an index of the best chain that is updated by
+     * {@link #setChainHead(StoredBlock)}, so this does not walk the chain.
+     */
+    StoredBlock getByHeight(int height) throws BlockStoreException;
 }
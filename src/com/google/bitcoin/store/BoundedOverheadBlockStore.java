@@ -33,14 +33,14 @@ import org.slf4j.LoggerFactory;
  * stored. It exploits operating system level buffering and the fact that get() requests are, in normal usage,
  * localized in chain space.<p>
  *
- * Blocks are stored sequentially. Most blocks are fetched out of a small in-memory cache. The slowest part is
- * traversing difficulty transition points, which requires seeking backwards over around 2000 blocks. On a Google
- * Nexus S phone this takes a couple of seconds. On a MacBook Pro it takes around 50msec.<p>
+ * Blocks are stored sequentially. Most blocks are fetched out of a small in-memory cache. Blocks that are not in the
+ * cache are located using a hash index kept in a second file next to the store (the store file name with
+ * ".index" appended). The index is an open addressed hash table keyed by the low 64 bits of the block hash, so a
+ * cache miss costs one read of the index and one read of the record rather than a scan over the chain. If the
+ * index file is missing or does not agree with the record file, it is rebuilt when the store is opened.<p>
  *
- * The store has much room for optimization. Expanding the size of the cache will likely allow us to traverse
- * difficulty transitions without using too much memory and without hitting the disk at all, for the case of initial
- * block chain download. Storing the hashes on disk would allow us to avoid deserialization and hashing which is
- * expensive on Android.
+ * The hashes of the best chain are kept in a third file (".heights") ordered by height, so getByHeight is one read
+ * of that file plus a normal get.
  */
 public class BoundedOverheadBlockStore implements BlockStore {
 	private static final Logger log = LoggerFactory.getLogger(BoundedOverheadBlockStore.class);
@@ -72,6 +72,11 @@ public class BoundedOverheadBlockStore implements BlockStore {
     private Sha256Hash chainHead;
     private NetworkParameters params;
     private FileChannel channel;
+    private HashIndex index;
+    private HeightFile heightIndex;
+
+    // The version byte and the chain head hash come before the first record.
+    private static final int RECORDS_START = 1 + 32;
 
     private static class Record {
         // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
@@ -92,8 +97,16 @@ public class BoundedOverheadBlockStore implements BlockStore {
         }
 
         // This should be static but the language does not allow for it.
-        public void write(FileChannel channel, StoredBlock block) throws IOException {
+        public void write(FileChannel channel, long position, StoredBlock block) throws IOException {
             ByteBuffer buf = ByteBuffer.allocate(Record.SIZE);
+            writeTo(buf, block);
+            buf.position(0);
+            if (channel.write(buf, position) < Record.SIZE)
+                throw new IOException("Failed to write record!");
+        }
+
+        /** Writes the record for the given block at the current position of the buffer. */
+        public void writeTo(ByteBuffer buf, StoredBlock block) {
             buf.putInt(block.getHeight());
             byte[] chainWorkBytes = block.getChainWork().toByteArray();
             assert chainWorkBytes.length <= CHAIN_WORK_BYTES : "Ran out of space to store chain work!";
@@ -103,11 +116,6 @@ public class BoundedOverheadBlockStore implements BlockStore {
             }
             buf.put(chainWorkBytes);
             buf.put(block.getHeader().bitcoinSerialize());
-            buf.position(0);
-            channel.position(channel.size());
-            if (channel.write(buf) < Record.SIZE)
-                throw new IOException("Failed to write record!");
-            channel.position(channel.size() - Record.SIZE);
         }
 
         public boolean read(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
@@ -139,6 +147,275 @@ public class BoundedOverheadBlockStore implements BlockStore {
         }
     }
 
+    /**
+     * An open addressed hash table that lives in its own file and maps block hashes to record numbers. Each slot
+     * holds the low 64 bits of a block hash and the record number plus one, so a zero record field marks an empty
+     * slot. The low bits are used because the high bits of a block hash are mostly zeros due to the proof of work.
+     * The table is kept at most half full and uses linear probing, so a lookup nearly always finds its answer in the
+     * first probe window, which is fetched with one positioned read.<p>
+     *
+     * A key match is not proof that the record is the one we want, as two hashes can share their low 64 bits. The
+     * caller must check the hash of the record it reads back.
+     */
+    private static class HashIndex {
+        private static final int INDEX_FORMAT_VERSION = 1;
+        // Version, capacity (in slots) and the number of records covered by the index. The count is written after
+        // every insert, so if it does not match the record file the index is stale.
+        private static final int HEADER_SIZE = 4 + 4 + 4;
+        private static final int SLOT_SIZE = 8 + 4;
+        private static final int INITIAL_CAPACITY = 1 << 12;
+        private static final int PROBE_WINDOW = 8;
+
+        private final FileChannel channel;
+        private int capacity;
+        private int count;
+        private final ByteBuffer window = ByteBuffer.allocate(PROBE_WINDOW * SLOT_SIZE);
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        /**
+         * Opens the index in the given file and checks it covers exactly numRecords records. Returns null if the
+         * index is missing, corrupt or stale.
+         */
+        static HashIndex open(File file, int numRecords) throws IOException {
+            if (!file.exists())
+                return null;
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) == HEADER_SIZE) {
+                header.flip();
+                int version = header.getInt();
+                int capacity = header.getInt();
+                int count = header.getInt();
+                boolean validCapacity = capacity >= INITIAL_CAPACITY && (capacity & (capacity - 1)) == 0;
+                if (version == INDEX_FORMAT_VERSION && validCapacity && count == numRecords &&
+                        channel.size() == HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+                    return new HashIndex(channel, capacity, count);
+                }
+            }
+            channel.close();
+            return null;
+        }
+
+        /**
+         * Creates a fresh index in the given file covering the first numRecords records of the store, by reading
+         * the records back and hashing their headers.
+         */
+        static HashIndex rebuild(File file, FileChannel records, int numRecords) throws IOException {
+            if (file.exists() && !file.delete())
+                throw new IOException("Could not delete old index in order to recreate it");
+            FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+            int capacity = INITIAL_CAPACITY;
+            while (capacity / 2 <= numRecords)
+                capacity <<= 1;
+            ByteBuffer table = ByteBuffer.allocate(capacity * SLOT_SIZE);
+            // Read the records in large batches, it's much faster than one at a time.
+            ByteBuffer batch = ByteBuffer.allocate(Record.SIZE * 1000);
+            byte[] hashes = new byte[Sha256.DIGEST_LENGTH * 1000];
+            int recordNumber = 0;
+            while (recordNumber < numRecords) {
+                batch.clear();
+                int batchRecords = Math.min(1000, numRecords - recordNumber);
+                batch.limit(batchRecords * Record.SIZE);
+                long position = RECORDS_START + (long) recordNumber * Record.SIZE;
+                while (batch.hasRemaining()) {
+                    if (records.read(batch, position + batch.position()) < 0)
+                        throw new IOException("Unexpected end of block store");
+                }
+                Sha256.doubleDigestMany(batch.array(), 4 + Record.CHAIN_WORK_BYTES, Block.HEADER_SIZE, Record.SIZE,
+                                        batchRecords, hashes, 0);
+                for (int i = 0; i < batchRecords; i++) {
+                    // The hashes are in wire order, the key is the last 8 bytes of the reversed hash read big endian,
+                    // which is the first 8 here read little endian.
+                    insert(table, capacity, Utils.readInt64(hashes, i * Sha256.DIGEST_LENGTH), recordNumber++);
+                }
+            }
+            HashIndex index = new HashIndex(channel, capacity, numRecords);
+            index.writeTable(table);
+            return index;
+        }
+
+        private HashIndex(FileChannel channel, int capacity, int count) {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.count = count;
+        }
+
+        /** Returns the low 64 bits of the hash, used as the key of the table. */
+        static long keyOf(byte[] hash) {
+            long key = 0;
+            for (int i = 24; i < 32; i++)
+                key = (key << 8) | (hash[i] & 0xFFL);
+            return key;
+        }
+
+        private static int slotFor(long key, int capacity) {
+            return (int) (key ^ (key >>> 32)) & (capacity - 1);
+        }
+
+        /** Inserts into an in-memory copy of the table. */
+        private static void insert(ByteBuffer table, int capacity, long key, int recordNumber) {
+            int slot = slotFor(key, capacity);
+            while (table.getInt(slot * SLOT_SIZE + 8) != 0)
+                slot = (slot + 1) & (capacity - 1);
+            table.putLong(slot * SLOT_SIZE, key);
+            table.putInt(slot * SLOT_SIZE + 8, recordNumber + 1);
+        }
+
+        /** Returns the record numbers of every entry that has the given key, nearly always zero or one of them. */
+        int[] lookup(long key) throws IOException {
+            int[] results = new int[0];
+            int slot = slotFor(key, capacity);
+            while (true) {
+                int slots = readWindow(slot);
+                for (int i = 0; i < slots; i++) {
+                    int record = window.getInt(i * SLOT_SIZE + 8);
+                    if (record == 0)
+                        return results;
+                    if (window.getLong(i * SLOT_SIZE) == key) {
+                        int[] grown = new int[results.length + 1];
+                        System.arraycopy(results, 0, grown, 0, results.length);
+                        grown[results.length] = record - 1;
+                        results = grown;
+                    }
+                }
+                slot = (slot + slots) & (capacity - 1);
+            }
+        }
+
+        /** Adds a record to the index, growing the table if it's getting too full. */
+        void add(long key, int recordNumber) throws IOException {
+            if ((count + 1) * 2 > capacity)
+                grow();
+            int slot = slotFor(key, capacity);
+            while (true) {
+                int slots = readWindow(slot);
+                for (int i = 0; i < slots; i++) {
+                    if (window.getInt(i * SLOT_SIZE + 8) == 0) {
+                        ByteBuffer entry = ByteBuffer.allocate(SLOT_SIZE);
+                        entry.putLong(key);
+                        entry.putInt(recordNumber + 1);
+                        entry.flip();
+                        channel.write(entry, HEADER_SIZE + (long) ((slot + i) & (capacity - 1)) * SLOT_SIZE);
+                        count++;
+                        writeHeader(count);
+                        return;
+                    }
+                }
+                slot = (slot + slots) & (capacity - 1);
+            }
+        }
+
+        // Reads up to PROBE_WINDOW slots starting at the given one, stopping at the end of the table. Returns how
+        // many slots were read.
+        private int readWindow(int slot) throws IOException {
+            int slots = Math.min(PROBE_WINDOW, capacity - slot);
+            window.clear();
+            window.limit(slots * SLOT_SIZE);
+            long position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            while (window.hasRemaining()) {
+                if (channel.read(window, position + window.position()) < 0)
+                    throw new IOException("Truncated block store index");
+            }
+            return slots;
+        }
+
+        private void grow() throws IOException {
+            ByteBuffer oldTable = ByteBuffer.allocate(capacity * SLOT_SIZE);
+            while (oldTable.hasRemaining()) {
+                if (channel.read(oldTable, HEADER_SIZE + oldTable.position()) < 0)
+                    throw new IOException("Truncated block store index");
+            }
+            int newCapacity = capacity * 2;
+            ByteBuffer newTable = ByteBuffer.allocate(newCapacity * SLOT_SIZE);
+            for (int slot = 0; slot < capacity; slot++) {
+                int record = oldTable.getInt(slot * SLOT_SIZE + 8);
+                if (record != 0)
+                    insert(newTable, newCapacity, oldTable.getLong(slot * SLOT_SIZE), record - 1);
+            }
+            capacity = newCapacity;
+            writeTable(newTable);
+        }
+
+        // Writes out a whole table. The header is invalidated first so a crash half way through is detected as a
+        // stale index the next time the store is opened.
+        private void writeTable(ByteBuffer table) throws IOException {
+            writeHeader(-1);
+            table.position(0);
+            long position = HEADER_SIZE;
+            while (table.hasRemaining())
+                position += channel.write(table, position);
+            writeHeader(count);
+        }
+
+        private void writeHeader(int count) throws IOException {
+            header.clear();
+            header.putInt(INDEX_FORMAT_VERSION);
+            header.putInt(capacity);
+            header.putInt(count);
+            header.flip();
+            channel.write(header, 0);
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A {@link HeightIndex} stored as a flat array of 32 byte hashes, one per height.
+     */
+    private static class HeightFile extends HeightIndex {
+        private static final int ENTRY_SIZE = 32;
+        private final FileChannel channel;
+
+        HeightFile(File file) throws IOException {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+
+        @Override
+        protected Sha256Hash read(int height) throws BlockStoreException {
+            try {
+                byte[] bytes = new byte[ENTRY_SIZE];
+                if (channel.read(ByteBuffer.wrap(bytes), (long) height * ENTRY_SIZE) < ENTRY_SIZE)
+                    throw new BlockStoreException("Truncated height index");
+                return new Sha256Hash(bytes);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        @Override
+        protected void write(int height, Sha256Hash hash) throws BlockStoreException {
+            try {
+                channel.write(ByteBuffer.wrap(hash.getBytes()), (long) height * ENTRY_SIZE);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        @Override
+        protected int size() throws BlockStoreException {
+            try {
+                return (int) (channel.size() / ENTRY_SIZE);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        @Override
+        protected void truncate(int size) throws BlockStoreException {
+            try {
+                channel.truncate((long) size * ENTRY_SIZE);
+            } catch (IOException e) {
+                throw new BlockStoreException(e);
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
     public BoundedOverheadBlockStore(NetworkParameters params, File file) throws BlockStoreException {
         this.params = params;
         notFoundMarker = new StoredBlock(null, null, -1);
@@ -150,10 +427,25 @@ public class BoundedOverheadBlockStore implements BlockStore {
         }
     }
 
+    private static File indexFileFor(File file) {
+        return new File(file.getPath() + ".index");
+    }
+
+    private static File heightsFileFor(File file) {
+        return new File(file.getPath() + ".heights");
+    }
+
     private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
         // Create a new block store if the file wasn't found or anything went wrong whilst reading.
         blockCache.clear();
         try {
+            // Let go of whatever a failed load managed to open before replacing it.
+            if (this.file != null)
+                this.file.close();
+            if (index != null)
+                index.close();
+            if (heightIndex != null)
+                heightIndex.close();
             if (file.exists()) {
                 if (!file.delete())
                     throw new BlockStoreException("Could not delete old store in order to recreate it");
@@ -161,6 +453,9 @@ public class BoundedOverheadBlockStore implements BlockStore {
             this.file = new RandomAccessFile(file, "rw");  // Create fresh.
             this.channel = this.file.getChannel();
             this.file.write(FILE_FORMAT_VERSION);
+            this.index = HashIndex.rebuild(indexFileFor(file), channel, 0);
+            this.heightIndex = new HeightFile(heightsFileFor(file));
+            this.heightIndex.truncate(0);
         } catch (IOException e1) {
             // We could not load a block store nor could we create a new one!
             throw new BlockStoreException(e1);
@@ -172,6 +467,7 @@ public class BoundedOverheadBlockStore implements BlockStore {
             this.chainHead = storedGenesis.getHeader().getHash();
             this.file.write(this.chainHead.getBytes());
             put(storedGenesis);
+            heightIndex.update(this, storedGenesis);
         } catch (VerificationException e1) {
             throw new RuntimeException(e1);  // Cannot happen.
         } catch (IOException e) {
@@ -198,7 +494,27 @@ public class BoundedOverheadBlockStore implements BlockStore {
             throw new BlockStoreException("Truncated store: could not read chain head hash.");
         this.chainHead = new Sha256Hash(chainHeadHash);
         log.info("Read chain head from disk: {}", this.chainHead);
-        channel.position(channel.size() - Record.SIZE);
+        File indexFile = indexFileFor(file);
+        index = HashIndex.open(indexFile, getNumRecords());
+        if (index == null) {
+            log.info("Block store index is missing or out of date, rebuilding it");
+            long now = System.currentTimeMillis();
+            index = HashIndex.rebuild(indexFile, channel, getNumRecords());
+            log.info("Rebuilt index of {} blocks in {}ms", getNumRecords(), System.currentTimeMillis() - now);
+        }
+        try {
+            if (getRecord(this.chainHead) == null)
+                throw new BlockStoreException("Corrupted block store: chain head not found");
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+        // Bring the height index up to date. Normally it already is and this reads one entry.
+        heightIndex = new HeightFile(heightsFileFor(file));
+        heightIndex.update(this, get(this.chainHead));
+    }
+
+    private int getNumRecords() throws IOException {
+        return (int) ((channel.size() - RECORDS_START) / Record.SIZE);
     }
 
     // TODO: This is ugly, fixinate!
@@ -207,9 +523,34 @@ public class BoundedOverheadBlockStore implements BlockStore {
     public synchronized void put(StoredBlock block) throws BlockStoreException {
         try {
             Sha256Hash hash = block.getHeader().getHash();
-            // Append to the end of the file.
-            dummyRecord.write(channel, block);
+            // Append to the end of the file, then point the index at it.
+            int recordNumber = getNumRecords();
+            dummyRecord.write(channel, RECORDS_START + (long) recordNumber * Record.SIZE, block);
+            index.add(HashIndex.keyOf(hash.getBytes()), recordNumber);
             blockCache.put(hash, block);
+            notFoundCache.remove(hash);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        try {
+            // Append all the records with one write, then point the index at each of them.
+            int recordNumber = getNumRecords();
+            ByteBuffer records = ByteBuffer.allocate(blocks.size() * Record.SIZE);
+            for (StoredBlock block : blocks)
+                dummyRecord.writeTo(records, block);
+            records.flip();
+            long position = RECORDS_START + (long) recordNumber * Record.SIZE;
+            while (records.hasRemaining())
+                position += channel.write(records, position);
+            for (StoredBlock block : blocks) {
+                Sha256Hash hash = block.getHeader().getHash();
+                index.add(HashIndex.keyOf(hash.getBytes()), recordNumber++);
+                blockCache.put(hash, block);
+                notFoundCache.remove(hash);
+            }
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -244,30 +585,15 @@ public class BoundedOverheadBlockStore implements BlockStore {
 
     private ByteBuffer buf = ByteBuffer.allocateDirect(Record.SIZE);
     private Record getRecord(Sha256Hash hash) throws BlockStoreException, IOException, ProtocolException {
-        long startPos = channel.position();
-        // Use our own file pointer within the tight loop as updating channel positions is really expensive.
-        long pos = startPos;
-        Record record = new Record();
-        do {
-            if (!record.read(channel, pos, buf))
-                throw new IOException("Failed to read buffer");
-            if (record.getHeader(params).getHash().equals(hash)) {
-                // Found it. Update file position for next time.
-                channel.position(pos);
+        // The index gives us the candidate records, normally just one. Check each really is the block we want.
+        for (int recordNumber : index.lookup(HashIndex.keyOf(hash.getBytes()))) {
+            Record record = new Record();
+            if (!record.read(channel, RECORDS_START + (long) recordNumber * Record.SIZE, buf))
+                throw new BlockStoreException("Block store index points past the end of the store");
+            if (record.getHeader(params).getHash().equals(hash))
                 return record;
-            }
-            // Did not find it.
-            if (pos == 1 + 32) {
-                // At the start so wrap around to the end.
-                pos = channel.size() - Record.SIZE;
-            } else {
-                // Move backwards.
-                pos = pos - Record.SIZE;
-                assert pos >= 1 + 32 : pos;
-            }
-        } while (pos != startPos);
+        }
         // Was never stored.
-        channel.position(pos);
         return null;
     }
 
@@ -286,5 +612,11 @@ public class BoundedOverheadBlockStore implements BlockStore {
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+        heightIndex.update(this, chainHead);
+    }
+
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Sha256Hash hash = heightIndex.get(height);
+        return hash == null ? null : get(hash);
     }
 }
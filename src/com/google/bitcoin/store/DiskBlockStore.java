@@ -19,6 +19,7 @@ package com.google.bitcoin.store;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.google.bitcoin.core.*;
@@ -36,10 +37,12 @@ public class DiskBlockStore implements BlockStore {
     private Map<Sha256Hash, StoredBlock> blockMap;
     private Sha256Hash chainHead;
     private NetworkParameters params;
+    private HeightIndex heightIndex;
 
     public DiskBlockStore(NetworkParameters params, File file) throws BlockStoreException {
         this.params = params;
         blockMap = new HashMap<Sha256Hash, StoredBlock>();
+        heightIndex = new HeightIndex();
         try {
             load(file);
             stream = new FileOutputStream(file, true);    // Do append.
@@ -52,6 +55,7 @@ public class DiskBlockStore implements BlockStore {
     private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
         // Create a new block store if the file wasn't found or anything went wrong whilst reading.
         blockMap.clear();
+        heightIndex = new HeightIndex();
         try {
             stream = new FileOutputStream(file, false);  // Do not append, create fresh.
             stream.write(1);  // Version.
@@ -66,6 +70,7 @@ public class DiskBlockStore implements BlockStore {
             this.chainHead = storedGenesis.getHeader().getHash();
             stream.write(this.chainHead.getBytes());
             put(storedGenesis);
+            heightIndex.update(this, storedGenesis);
         } catch (VerificationException e1) {
             throw new RuntimeException(e1);  // Cannot happen.
         } catch (IOException e) {
@@ -132,6 +137,10 @@ public class DiskBlockStore implements BlockStore {
                 // Should not be able to happen unless the file contains bad blocks.
                 throw new BlockStoreException(e);
             }
+            StoredBlock head = blockMap.get(chainHead);
+            if (head == null)
+                throw new BlockStoreException("Corrupted block store: chain head not found");
+            heightIndex.update(this, head);
             long elapsed = System.currentTimeMillis() - now;
             log.info("Block chain read complete in {}ms", elapsed);
         } finally {
@@ -153,6 +162,26 @@ public class DiskBlockStore implements BlockStore {
         }
     }
 
+    public synchronized void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        try {
+            // Append all the headers with a single write.
+            byte[] bytes = new byte[blocks.size() * Block.HEADER_SIZE];
+            int offset = 0;
+            for (StoredBlock block : blocks) {
+                assert blockMap.get(block.getHeader().getHash()) == null : "Attempt to insert duplicate";
+                byte[] header = block.getHeader().bitcoinSerialize();
+                System.arraycopy(header, 0, bytes, offset, Block.HEADER_SIZE);
+                offset += Block.HEADER_SIZE;
+            }
+            stream.write(bytes);
+            stream.flush();
+            for (StoredBlock block : blocks)
+                blockMap.put(block.getHeader().getHash(), block);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         return blockMap.get(hash);
     }
@@ -166,8 +195,14 @@ public class DiskBlockStore implements BlockStore {
             this.chainHead = chainHead.getHeader().getHash();
             // Write out new hash to the first 32 bytes of the file past one (first byte is version number).
             stream.getChannel().write(ByteBuffer.wrap(this.chainHead.getBytes()), 1);
+            heightIndex.update(this, chainHead);
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
     }
+
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Sha256Hash hash = heightIndex.get(height);
+        return hash == null ? null : blockMap.get(hash);
+    }
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+
+import java.util.ArrayList;
+
+/**
+ * Maps heights to block hashes along the best chain, so a {@link BlockStore} can answer getByHeight without walking
+ * back from the chain head.<p>
+ *
+ * The index is brought up to date by {@link #update(BlockStore, StoredBlock)} whenever the chain head changes. That
+ * walks back from the new head, overwriting entries until it reaches a block the index already has at the right
+ * height, which is the point the new best chain forks from the old one. Entries above the new head are dropped. In
+ * the common case of a block extending the chain this touches two entries; a re-organize rewrites one entry per block
+ * on the new side of the split.<p>
+ *
+ * This implementation keeps the hashes in memory. Subclasses can store them elsewhere by overriding
+ * {@link #read(int)}, {@link #write(int, Sha256Hash)}, {@link #size()} and {@link #truncate(int)}.
+ */
+class HeightIndex {
+    private final ArrayList<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+
+    /**
+     * Returns the hash of the best chain block at the given height, or null if the height is above the chain head
+     * or was never indexed.
+     */
+    Sha256Hash get(int height) throws BlockStoreException {
+        if (height < 0 || height >= size())
+            return null;
+        return read(height);
+    }
+
+    /**
+     * Makes the index describe the chain ending at the given head. Blocks are looked up in the store as the index
+     * walks back, so the store must already contain the head and its ancestors.
+     */
+    void update(BlockStore store, StoredBlock head) throws BlockStoreException {
+        // Find the blocks that differ, newest first. Nothing is changed until the walk has succeeded, so a missing
+        // ancestor leaves the index as it was rather than half written.
+        ArrayList<Sha256Hash> changed = new ArrayList<Sha256Hash>();
+        StoredBlock cursor = head;
+        while (true) {
+            int height = cursor.getHeight();
+            Sha256Hash hash = cursor.getHeader().getHash();
+            if (height < size() && hash.equals(read(height)))
+                break;  // Rejoined the chain we already had.
+            changed.add(hash);
+            if (height == 0)
+                break;
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                throw new BlockStoreException("Missing ancestor at height " + (height - 1) + " of " + hash);
+        }
+        if (size() > head.getHeight() + 1)
+            truncate(head.getHeight() + 1);
+        // Write them oldest first. If we are interrupted part way the entry for the head is still wrong, so the next
+        // update walks back over the unfinished part again.
+        int height = head.getHeight() - changed.size() + 1;
+        for (int i = changed.size() - 1; i >= 0; i--)
+            write(height++, changed.get(i));
+    }
+
+    protected Sha256Hash read(int height) throws BlockStoreException {
+        return hashes.get(height);
+    }
+
+    protected void write(int height, Sha256Hash hash) throws BlockStoreException {
+        while (hashes.size() <= height)
+            hashes.add(null);
+        hashes.set(height, hash);
+    }
+
+    protected int size() throws BlockStoreException {
+        return hashes.size();
+    }
+
+    protected void truncate(int size) throws BlockStoreException {
+        while (hashes.size() > size)
+            hashes.remove(hashes.size() - 1);
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import com.google.bitcoin.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the block chain in a memory mapped file.<p>
+ *
+ * Blocks are stored as fixed size records in the same layout {@link BoundedOverheadBlockStore} uses: the height,
+ * 16 bytes of chain work and the 80 byte header. The file is mapped into memory in large segments, so reading and
+ * appending records is done directly on the mapped pages with no system call per operation. When the last segment
+ * fills up another one is mapped, which grows the file in steps of several megabytes rather than a record at a
+ * time.<p>
+ *
+ * A map of block hashes to record numbers is held in memory and rebuilt from the records when the store is opened,
+ * along with the height index of the best chain, so once the pages are warm a lookup costs a hash map access plus
+ * a read from the mapping. This makes it a good choice for desktops and servers. Constrained devices may prefer
+ * {@link BoundedOverheadBlockStore} which keeps its indexes on disk.<p>
+ *
+ * Records are written to the mapping as they are put, and reach the disk whenever the operating system writes the
+ * pages back. Setting the chain head first forces out the records written since the last time, then writes and forces
+ * the chain head, so after a crash the head always refers to a record that made it to disk.
+ */
+public class MappedBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedBlockStore.class);
+    private static final byte FILE_FORMAT_VERSION = 1;
+
+    // The version byte, the chain head hash and the number of records in use.
+    private static final int FILE_HEADER_SIZE = 1 + 32 + 4;
+    private static final int CHAIN_WORK_BYTES = 16;
+    private static final int RECORD_SIZE = 4 + CHAIN_WORK_BYTES + Block.HEADER_SIZE;
+    // How many records fit in one mapped segment. Records never straddle two segments.
+    private static final int SEGMENT_RECORDS = 1 << 16;
+    private static final int SEGMENT_SIZE = SEGMENT_RECORDS * RECORD_SIZE;
+    private static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
+
+    private final NetworkParameters params;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer fileHeader;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private final Map<Sha256Hash, Integer> recordNumbers = new HashMap<Sha256Hash, Integer>();
+    private int numRecords;
+    // Records from this one on may not have been forced out to disk yet.
+    private int firstUnforcedRecord;
+    private Sha256Hash chainHead;
+    private HeightIndex heightIndex = new HeightIndex();
+
+    // Scratch space for reading records back out of the mapping.
+    private final byte[] chainWorkBytes = new byte[CHAIN_WORK_BYTES];
+    private final byte[] headerBytes = new byte[Block.HEADER_SIZE];
+
+    public MappedBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this.params = params;
+        try {
+            load(file);
+        } catch (Exception e) {
+            log.error("failed to load block store from file", e);
+            createNewStore(params, file);
+        }
+    }
+
+    private void createNewStore(NetworkParameters params, File file) throws BlockStoreException {
+        // Create a new block store if the file wasn't found or anything went wrong whilst reading.
+        recordNumbers.clear();
+        heightIndex = new HeightIndex();
+        segments.clear();
+        numRecords = 0;
+        firstUnforcedRecord = 0;
+        try {
+            // A failed load may have left the old file open and mapped. Some platforms refuse to delete or truncate
+            // a mapped file until the mapping is garbage collected, so the file is reused rather than deleted.
+            if (this.file != null)
+                this.file.close();
+            this.file = new RandomAccessFile(file, "rw");
+            try {
+                this.file.setLength(0);
+            } catch (IOException e) {
+                // Still mapped. The old records are overwritten or ignored, as the record count starts again from 0.
+            }
+            this.channel = this.file.getChannel();
+            fileHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE);
+            fileHeader.put(0, FILE_FORMAT_VERSION);
+            fileHeader.putInt(1 + 32, 0);
+        } catch (IOException e1) {
+            // We could not load a block store nor could we create a new one!
+            throw new BlockStoreException(e1);
+        }
+        try {
+            // Set up the genesis block. When we start out fresh, it is by definition the top of the chain.
+            Block genesis = params.genesisBlock.cloneAsHeader();
+            StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+            put(storedGenesis);
+            setChainHead(storedGenesis);
+        } catch (VerificationException e1) {
+            throw new RuntimeException(e1);  // Cannot happen.
+        }
+    }
+
+    private void load(File file) throws IOException, BlockStoreException {
+        log.info("Reading block store from {}", file);
+        if (!file.exists() || file.length() < FILE_HEADER_SIZE)
+            throw new FileNotFoundException(file.getName() + " does not exist or is empty");
+        this.file = new RandomAccessFile(file, "rw");
+        channel = this.file.getChannel();
+        fileHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE);
+        int version = fileHeader.get(0);
+        if (version != FILE_FORMAT_VERSION)
+            throw new BlockStoreException("Bad version number: " + version);
+        byte[] chainHeadHash = new byte[32];
+        fileHeader.position(1);
+        fileHeader.get(chainHeadHash);
+        chainHead = new Sha256Hash(chainHeadHash);
+        log.info("Read chain head from disk: {}", chainHead);
+        int count = fileHeader.getInt(1 + 32);
+        if (count < 1 || FILE_HEADER_SIZE + (long) count * RECORD_SIZE > channel.size())
+            throw new BlockStoreException("Truncated store: record count is " + count);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            ensureCapacity(i);
+            recordNumbers.put(readHash(i), i);
+        }
+        numRecords = count;
+        firstUnforcedRecord = count;
+        if (!recordNumbers.containsKey(chainHead))
+            throw new BlockStoreException("Corrupted block store: chain head not found");
+        heightIndex.update(this, get(chainHead));
+        log.info("Mapped {} blocks in {}ms", count, System.currentTimeMillis() - now);
+    }
+
+    /** Makes sure the segment holding the given record is mapped, growing the file if necessary. */
+    private void ensureCapacity(int recordNumber) throws IOException {
+        int segment = recordNumber / SEGMENT_RECORDS;
+        while (segments.size() <= segment) {
+            long position = FILE_HEADER_SIZE + (long) segments.size() * SEGMENT_SIZE;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, SEGMENT_SIZE));
+        }
+    }
+
+    /** Returns the segment holding the given record, positioned at the start of the record. */
+    private MappedByteBuffer seek(int recordNumber) {
+        MappedByteBuffer segment = segments.get(recordNumber / SEGMENT_RECORDS);
+        segment.position((recordNumber % SEGMENT_RECORDS) * RECORD_SIZE);
+        return segment;
+    }
+
+    private Sha256Hash readHash(int recordNumber) {
+        MappedByteBuffer segment = seek(recordNumber);
+        segment.position(segment.position() + 4 + CHAIN_WORK_BYTES);
+        segment.get(headerBytes);
+        return new Sha256Hash(Utils.doubleDigest(headerBytes), 0, true);
+    }
+
+    private StoredBlock readRecord(int recordNumber) throws BlockStoreException {
+        MappedByteBuffer segment = seek(recordNumber);
+        int height = segment.getInt();
+        segment.get(chainWorkBytes);
+        segment.get(headerBytes);
+        try {
+            return new StoredBlock(new Block(params, headerBytes), new BigInteger(1, chainWorkBytes), height);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        byte[] chainWork = block.getChainWork().toByteArray();
+        assert chainWork.length <= CHAIN_WORK_BYTES : "Ran out of space to store chain work!";
+        try {
+            ensureCapacity(numRecords);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        MappedByteBuffer segment = seek(numRecords);
+        segment.putInt(block.getHeight());
+        // Pad the chain work to the right size.
+        segment.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWork.length);
+        segment.put(chainWork);
+        segment.put(block.getHeader().bitcoinSerialize());
+        recordNumbers.put(hash, numRecords);
+        numRecords++;
+        fileHeader.putInt(1 + 32, numRecords);
+    }
+
+    public synchronized void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        // Writes to the mapping are already just memory copies, so there is nothing to gain from batching them.
+        for (StoredBlock block : blocks)
+            put(block);
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Integer recordNumber = recordNumbers.get(hash);
+        if (recordNumber == null)
+            return null;
+        return readRecord(recordNumber);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        StoredBlock head = get(chainHead);
+        if (head == null)
+            throw new BlockStoreException("Corrupted block store: chain head not found");
+        return head;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead.getHeader().getHash();
+        // The records must be on disk before a chain head that refers to them.
+        if (firstUnforcedRecord < numRecords) {
+            for (int i = firstUnforcedRecord / SEGMENT_RECORDS; i <= (numRecords - 1) / SEGMENT_RECORDS; i++)
+                segments.get(i).force();
+            firstUnforcedRecord = numRecords;
+        }
+        // The chain head hash lives just after the version byte.
+        fileHeader.position(1);
+        fileHeader.put(this.chainHead.getBytes());
+        fileHeader.force();
+        heightIndex.update(this, chainHead);
+    }
+
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Sha256Hash hash = heightIndex.get(height);
+        return hash == null ? null : get(hash);
+    }
+}
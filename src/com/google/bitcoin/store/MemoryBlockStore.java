@@ -21,6 +21,7 @@ import com.google.bitcoin.core.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -29,6 +30,7 @@ import java.util.Map;
 public class MemoryBlockStore implements BlockStore {
     private Map<Sha256Hash, StoredBlock> blockMap;
     private StoredBlock chainHead;
+    private final HeightIndex heightIndex = new HeightIndex();
 
     public MemoryBlockStore(NetworkParameters params) {
         blockMap = new HashMap<Sha256Hash, StoredBlock>();
@@ -50,6 +52,11 @@ public class MemoryBlockStore implements BlockStore {
         blockMap.put(hash, block);
     }
 
+    public synchronized void putAll(List<StoredBlock> blocks) throws BlockStoreException {
+        for (StoredBlock block : blocks)
+            put(block);
+    }
+
     public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         return blockMap.get(hash);
     }
@@ -58,7 +65,13 @@ public class MemoryBlockStore implements BlockStore {
         return chainHead;
     }
 
-    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         this.chainHead = chainHead;
+        heightIndex.update(this, chainHead);
+    }
+
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Sha256Hash hash = heightIndex.get(height);
+        return hash == null ? null : blockMap.get(hash);
     }
 }
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BitCoinTest {
+    @Test
+    public void testArithmetic() throws Exception {
+        BitCoin a = BitCoin.valueOf(1, 50);
+        assertEquals(150000000L, a.longValue());
+        assertEquals(Utils.toNanoCoins(1, 50), a.toBigInteger());
+        assertEquals(a, BitCoin.valueOf(Utils.toNanoCoins(1, 50)));
+        assertEquals(BitCoin.valueOf(0, 50), a.subtract(BitCoin.COIN));
+        assertEquals(BitCoin.valueOf(2, 50), a.add(BitCoin.COIN));
+        assertEquals(-1, BitCoin.COIN.subtract(a).signum());
+        assertTrue(a.compareTo(BitCoin.COIN) > 0);
+        assertTrue(BitCoin.ZERO == BitCoin.valueOf(0));
+    }
+
+    @Test
+    public void testFormatting() throws Exception {
+        assertEquals("1.50", BitCoin.valueOf(1, 50).toString());
+        assertEquals("-0.05", BitCoin.valueOf(-5000000).toString());
+        assertEquals(Utils.bitcoinValueToFriendlyString(Utils.toNanoCoins(21, 3)),
+                     BitCoin.toFriendlyString(BitCoin.valueOf(21, 3).longValue()));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testOutOfRange() throws Exception {
+        BitCoin.valueOf(BigInteger.ONE.shiftLeft(63));
+    }
+}
@@ -21,8 +21,14 @@ import org.bouncycastle.util.encoders.Hex;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class BitcoinSerializerTest
 {
@@ -61,4 +67,78 @@ public class BitcoinSerializerTest
         assertEquals(8333, pa.port);
         assertEquals("10.0.0.1", pa.addr.getHostAddress());
     }
+
+    @Test
+    public void testHeaders() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        BitcoinSerializer bs = new BitcoinSerializer(params, true);
+        Address to = new ECKey().toAddress(params);
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = params.genesisBlock;
+        for (int i = 0; i < 3; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(new HeadersMessage(params, blocks), bos);
+        // Three 80 byte headers, each followed by a zero transaction count, after the count of headers.
+        assertEquals(1 + 3 * 81, bos.size() - 24);
+        HeadersMessage headers = (HeadersMessage) bs.deserialize(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(3, headers.getBlockHeaders().size());
+        for (int i = 0; i < 3; i++) {
+            Block header = headers.getBlockHeaders().get(i);
+            assertEquals(blocks.get(i).getHash(), header.getHash());
+            assertNull(header.transactions);
+        }
+    }
+
+    @Test
+    public void testDeserializeBuffer() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        BitcoinSerializer bs = new BitcoinSerializer(params, true);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // Some garbage, then two messages.
+        bos.write(new byte[] { 1, 2, 3 });
+        bs.serialize(new Ping(), bos);
+        bs.serialize(new HeadersMessage(params, new ArrayList<Block>()), bos);
+        byte[] bytes = bos.toByteArray();
+
+        // Feed the bytes in one at a time, as a non-blocking socket might.
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length);
+        List<Message> messages = new ArrayList<Message>();
+        for (byte b : bytes) {
+            buf.put(b);
+            buf.flip();
+            Message m;
+            while ((m = bs.deserialize(buf)) != null)
+                messages.add(m);
+            buf.compact();
+        }
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0) instanceof Ping);
+        assertEquals(0, ((HeadersMessage) messages.get(1)).getBlockHeaders().size());
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testDeserializeInPlace() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        BitcoinSerializer bs = new BitcoinSerializer(params, true);
+        Block block = params.genesisBlock.createNextBlock(new ECKey().toAddress(params));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // A block surrounded by other messages, with a byte of the packet magic as garbage in front.
+        bos.write((int) (params.packetMagic >>> 24));
+        bs.serialize(new Ping(), bos);
+        bs.serialize(block, bos);
+        bs.serialize(new Ping(), bos);
+        ByteBuffer buf = ByteBuffer.wrap(bos.toByteArray());
+        assertTrue(bs.deserialize(buf) instanceof Ping);
+        Block parsed = (Block) bs.deserialize(buf);
+        assertEquals(block.getHash(), parsed.getHash());
+        assertEquals(block.transactions.size(), parsed.transactions.size());
+        assertEquals(block.transactions.get(0).getHash(), parsed.transactions.get(0).getHash());
+        assertTrue(bs.deserialize(buf) instanceof Ping);
+        assertNull(bs.deserialize(buf));
+        assertEquals(0, buf.remaining());
+    }
 }
@@ -22,6 +22,12 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static com.google.bitcoin.core.TestUtils.createFakeBlock;
 import static com.google.bitcoin.core.TestUtils.createFakeTx;
@@ -134,6 +140,207 @@ public class BlockChainTest {
         assertEquals(chain.getChainHead().getHeader(), b3.cloneAsHeader());
     }
 
+    @Test
+    public void testOrphansConnectInReverse() throws Exception {
+        // A peer sending a run of blocks backwards leaves each one waiting for the next. Connecting the first block
+        // releases them all.
+        Block[] blocks = new Block[6];
+        Block prev = unitTestParams.genesisBlock;
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = prev.createNextBlock(coinbaseTo);
+            prev = blocks[i];
+        }
+        for (int i = blocks.length - 1; i > 0; i--) {
+            assertFalse(chain.add(blocks[i]));
+            assertEquals(blocks[i], chain.getUnconnectedBlock());
+        }
+        assertTrue(chain.add(blocks[0]));
+        assertEquals(blocks[5].cloneAsHeader(), chain.getChainHead().getHeader());
+        assertNull(chain.getUnconnectedBlock());
+    }
+
+    @Test
+    public void testBadOrphanDoesNotLoseSiblings() throws Exception {
+        // Two orphans wait for the same block. The first has a difficulty change where none is allowed, which is
+        // only found out once it can be connected.
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block bad = b1.createNextBlock(coinbaseTo);
+        bad.setDifficultyTarget(0x201fFFFFL);
+        bad.solve();
+        Block good = b1.createNextBlock(coinbaseTo);
+        Block goodChild = good.createNextBlock(coinbaseTo);
+        assertFalse(chain.add(bad));
+        assertFalse(chain.add(good));
+        assertFalse(chain.add(goodChild));
+        // Connecting their parent drops the bad orphan and still connects the good one and its own child.
+        assertTrue(chain.add(b1));
+        assertEquals(goodChild.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertNull(chain.getUnconnectedBlock());
+    }
+
+    @Test
+    public void testOrphanLimits() throws Exception {
+        Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        chain.setMaxOrphanBlocks(2);
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3));
+        assertFalse(chain.add(b4));
+        // b2 was the oldest orphan so it got evicted, leaving b3 and b4 with no way to connect.
+        assertTrue(chain.add(b1));
+        assertEquals(b1.cloneAsHeader(), chain.getChainHead().getHeader());
+        assertEquals(b4, chain.getUnconnectedBlock());
+        // Once b2 arrives again the rest follow.
+        assertTrue(chain.add(b2));
+        assertEquals(b4.cloneAsHeader(), chain.getChainHead().getHeader());
+        // A byte limit smaller than any block keeps nothing at all.
+        chain.setMaxOrphanBytes(Block.HEADER_SIZE);
+        assertFalse(chain.add(b4.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo)));
+        assertNull(chain.getUnconnectedBlock());
+    }
+
+    @Test
+    public void testAddAsync() throws Exception {
+        // Blocks are verified on several threads but must still be connected in the order they were given.
+        chain.setVerificationThreads(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        Block prev = unitTestParams.genesisBlock;
+        for (int i = 0; i < 8; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            results.add(chain.addAsync(prev));
+        }
+        for (Future<Boolean> result : results)
+            assertTrue(result.get());
+        assertEquals(prev.cloneAsHeader(), chain.getChainHead().getHeader());
+
+        // A block that fails verification reports it through the future.
+        Block bad = prev.createNextBlock(coinbaseTo);
+        bad.setTime(System.currentTimeMillis() / 1000 + 365 * 24 * 60 * 60);
+        try {
+            chain.addAsync(bad).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        assertEquals(prev.cloneAsHeader(), chain.getChainHead().getHeader());
+
+        // Queueing a block doesn't wait for the chain, which may be busy connecting an earlier one.
+        final Block next = prev.createNextBlock(coinbaseTo);
+        final List<Future<Boolean>> queued = new ArrayList<Future<Boolean>>();
+        Thread queuer = new Thread() {
+            public void run() {
+                try {
+                    queued.add(chain.addAsync(next));
+                } catch (InterruptedException e) {
+                    // Test fails below.
+                }
+            }
+        };
+        synchronized (chain) {
+            queuer.start();
+            queuer.join(10000);
+            assertEquals(1, queued.size());
+        }
+        assertTrue(queued.get(0).get());
+    }
+
+    @Test
+    public void testAddAsyncBounded() throws Exception {
+        // Once the chain holds as many unconnected blocks as it is allowed, queueing another waits for room.
+        chain.setMaxPendingBlocks(2);
+        final Block b1 = unitTestParams.genesisBlock.createNextBlock(coinbaseTo);
+        final Block b2 = b1.createNextBlock(coinbaseTo);
+        final Block b3 = b2.createNextBlock(coinbaseTo);
+        final List<Future<Boolean>> queued = Collections.synchronizedList(new ArrayList<Future<Boolean>>());
+        Thread queuer = new Thread() {
+            public void run() {
+                try {
+                    for (Block b : new Block[] {b1, b2, b3})
+                        queued.add(chain.addAsync(b));
+                } catch (InterruptedException e) {
+                    // Test fails below.
+                }
+            }
+        };
+        synchronized (chain) {
+            // The connector can't take the chain lock, so nothing is connected until we let go of it.
+            queuer.start();
+            queuer.join(1000);
+            assertTrue(queuer.isAlive());
+            assertEquals(2, queued.size());
+        }
+        queuer.join(10000);
+        assertEquals(3, queued.size());
+        for (Future<Boolean> result : queued)
+            assertTrue(result.get());
+        assertEquals(b3.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void testAddAll() throws Exception {
+        // A run of blocks, one paying our wallet, followed by an orphan that cannot connect.
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = unitTestParams.genesisBlock;
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            blocks.add(prev);
+        }
+        Block orphan = prev.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo);
+        blocks.add(orphan);
+        // The wallet hears about the whole batch once.
+        final int[] notifications = new int[1];
+        final BigInteger[] balances = new BigInteger[2];
+        wallet.addEventListener(new WalletEventListener() {
+            public void onCoinsReceived(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                notifications[0]++;
+                balances[0] = prevBalance;
+                balances[1] = newBalance;
+            }
+        });
+        assertEquals(5, chain.addAll(blocks));
+        assertEquals(1, notifications[0]);
+        assertEquals(BigInteger.ZERO, balances[0]);
+        assertEquals(wallet.getBalance(), balances[1]);
+        assertEquals(prev.cloneAsHeader(), chain.getChainHead().getHeader());
+        // The store was brought up to date when the batch ended.
+        assertEquals(chain.getChainHead(), blockStore.getChainHead());
+        assertEquals(blocks.get(2).getHash(), blockStore.getByHeight(3).getHeader().getHash());
+        assertEquals(Utils.toNanoCoins(250, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(orphan, chain.getUnconnectedBlock());
+
+        // A batch containing a bad block is rejected before anything is connected.
+        Block good = prev.createNextBlock(coinbaseTo);
+        Block bad = good.createNextBlock(coinbaseTo);
+        bad.setTime(System.currentTimeMillis() / 1000 + 365 * 24 * 60 * 60);
+        try {
+            chain.addAll(Arrays.asList(good, bad));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(prev.cloneAsHeader(), chain.getChainHead().getHeader());
+    }
+
+    @Test
+    public void testAddHeaders() throws Exception {
+        // During a headers first download the chain is built from headers alone.
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = unitTestParams.genesisBlock;
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            headers.add(prev.cloneAsHeader());
+        }
+        assertEquals(5, chain.addAll(headers));
+        assertEquals(5, chain.getChainHead().getHeight());
+        // The coinbases were never seen.
+        assertEquals(BigInteger.ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // Full blocks can carry on from the last header.
+        assertTrue(chain.add(prev.createNextBlock(coinbaseTo)));
+        assertEquals(6, chain.getChainHead().getHeight());
+    }
+
     @Test
     public void testDifficultyTransitions() throws Exception {
         // Add a bunch of blocks in a loop until we reach a difficulty transition point. The unit test params have an
@@ -162,6 +369,61 @@ public class BlockChainTest {
         // Successfully traversed a difficulty transition period.
     }
 
+    @Test
+    public void testGetAncestor() throws Exception {
+        // Build a best chain of 8 blocks and a shorter side chain forking off at height 3. This stays below the
+        // unit test difficulty interval.
+        Block prev = unitTestParams.genesisBlock;
+        Block[] blocks = new Block[9];
+        blocks[0] = prev;
+        for (int i = 1; i <= 8; i++) {
+            blocks[i] = prev.createNextBlock(coinbaseTo);
+            assertTrue(chain.add(blocks[i]));
+            prev = blocks[i];
+        }
+        Block side = blocks[3];
+        for (int i = 0; i < 3; i++) {
+            side = side.createNextBlock(coinbaseTo);
+            assertTrue(chain.add(side));
+        }
+        StoredBlock head = chain.getChainHead();
+        assertEquals(blocks[8].getHash(), head.getHeader().getHash());
+        assertEquals(blocks[2].getHash(), chain.getAncestor(head, 2).getHeader().getHash());
+        assertEquals(head, chain.getAncestor(head, 8));
+        assertNull(chain.getAncestor(head, -1));
+        // The side chain is followed back until it joins the best chain.
+        StoredBlock sideHead = blockStore.get(side.getHash());
+        assertEquals(6, sideHead.getHeight());
+        assertEquals(side.getPrevBlockHash(), chain.getAncestor(sideHead, 5).getHeader().getHash());
+        assertEquals(blocks[2].getHash(), chain.getAncestor(sideHead, 2).getHeader().getHash());
+    }
+
+    @Test
+    public void testBlockLocator() throws Exception {
+        // Put 30 blocks into the store directly, as adding them to the chain would cross difficulty transitions.
+        StoredBlock[] stored = new StoredBlock[31];
+        stored[0] = blockStore.getChainHead();
+        for (int i = 1; i <= 30; i++) {
+            stored[i] = stored[i - 1].build(stored[i - 1].getHeader().createNextBlock(coinbaseTo).cloneAsHeader());
+            blockStore.put(stored[i]);
+        }
+        blockStore.setChainHead(stored[30]);
+        chain = new BlockChain(unitTestParams, wallet, blockStore);
+
+        // The ten most recent blocks, then steps of 2, 4, 8 and so on down to the genesis block.
+        List<Sha256Hash> locator = chain.getBlockLocator();
+        int[] heights = {30, 29, 28, 27, 26, 25, 24, 23, 22, 21, 19, 15, 7, 0};
+        assertEquals(heights.length, locator.size());
+        for (int i = 0; i < heights.length; i++)
+            assertEquals(stored[heights[i]].getHeader().getHash(), locator.get(i));
+        // It is kept until the chain head moves.
+        assertSame(locator, chain.getBlockLocator());
+        Block next = stored[30].getHeader().createNextBlock(coinbaseTo);
+        assertTrue(chain.add(next));
+        assertEquals(next.getHash(), chain.getBlockLocator().get(0));
+        assertEquals(stored[30].getHeader().getHash(), chain.getBlockLocator().get(1));
+    }
+
     @Test
     public void testBadDifficulty() throws Exception {
         assertTrue(testNetChain.add(getBlock1()));
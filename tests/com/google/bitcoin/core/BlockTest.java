@@ -27,6 +27,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import static org.junit.Assert.*;
 
@@ -58,6 +60,88 @@ public class BlockTest {
         assertEquals("00000000a6e5eb79dcec11897af55e90cd571a4335383a3ccfbc12ec81085935", block.getHashAsString());
     }
 
+    @Test
+    public void testLazyParsing() throws Exception {
+        Block block = new Block(params, blockBytes, 0, blockBytes.length, true);
+        // The header is available straight away, the transactions are not parsed until they are used.
+        assertEquals("00000000a6e5eb79dcec11897af55e90cd571a4335383a3ccfbc12ec81085935", block.getHashAsString());
+        assertNull(block.transactions);
+        assertEquals(blockBytes.length, block.getMessageSize());
+        block.verify();
+        assertNotNull(block.transactions);
+        assertEquals(new Block(params, blockBytes).getTransactions().size(), block.getTransactions().size());
+        assertTrue(Arrays.equals(blockBytes, block.bitcoinSerialize()));
+
+        // A header alone has nothing left to parse.
+        byte[] headerBytes = new byte[Block.HEADER_SIZE];
+        System.arraycopy(blockBytes, 0, headerBytes, 0, Block.HEADER_SIZE);
+        Block header = new Block(params, headerBytes, 0, headerBytes.length, true);
+        assertNull(header.getTransactions());
+        assertEquals(block.getHash(), header.getHash());
+    }
+
+    @Test
+    public void testCachedBytes() throws Exception {
+        Block block = new Block(params, blockBytes);
+        Transaction tx = block.transactions.get(1);
+        Sha256Hash hash = tx.getHash();
+        byte[] cached = tx.bitcoinSerialize();
+        // Serializing from the fields gives the same bytes and hash as the ones kept from parsing.
+        tx.unCache();
+        assertTrue(Arrays.equals(cached, tx.bitcoinSerialize()));
+        assertEquals(hash, tx.getHash());
+        assertTrue(Arrays.equals(blockBytes, block.bitcoinSerialize()));
+        // Changing the transaction changes its hash.
+        tx.addOutput(new TransactionOutput(params, tx, Utils.toNanoCoins(1, 0), new ECKey().toAddress(params)));
+        assertFalse(hash.equals(tx.getHash()));
+    }
+
+    @Test
+    public void testSerializeInto() throws Exception {
+        Block block = new Block(params, blockBytes);
+        block.unCache();
+        for (Transaction tx : block.transactions)
+            tx.unCache();
+        // The pre-sized path writes the same bytes as the stream, at any offset into the buffer.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        block.bitcoinSerializeToStream(bos);
+        assertEquals(blockBytes.length, block.getSerializedSize());
+        byte[] buf = new byte[block.getSerializedSize() + 3];
+        assertEquals(buf.length, block.serializeInto(buf, 3));
+        byte[] written = new byte[blockBytes.length];
+        System.arraycopy(buf, 3, written, 0, written.length);
+        assertTrue(Arrays.equals(bos.toByteArray(), written));
+        assertTrue(Arrays.equals(blockBytes, written));
+    }
+
+    @Test
+    public void testParallelMerkleRoot() throws Exception {
+        NetworkParameters params = NetworkParameters.unitTests();
+        Block block = params.genesisBlock.createNextBlock(new ECKey().toAddress(params));
+        for (int i = 0; i < 1500; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(new TransactionOutput(params, tx, BigInteger.valueOf(i + 1), new ECKey().toAddress(params)));
+            block.addTransaction(tx);
+        }
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(3);
+        int threshold = Block.parallelMerkleThreshold;
+        try {
+            // Calculated on this thread, then again with every level split across the executor.
+            Block.setMerkleExecutor(null, 0);
+            Sha256Hash root = block.getMerkleRoot();
+            Block.setMerkleExecutor(executor, 3);
+            Block.parallelMerkleThreshold = 2;
+            block.addTransaction(block.transactions.remove(block.transactions.size() - 1));
+            assertEquals(root, block.getMerkleRoot());
+            // However many processors this machine has, the work was split up.
+            assertTrue(executor.getTaskCount() > 0);
+        } finally {
+            Block.parallelMerkleThreshold = threshold;
+            Block.resetMerkleExecutor();
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void testProofOfWork() throws Exception {
         // This params accepts any difficulty target.
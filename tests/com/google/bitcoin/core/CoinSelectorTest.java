@@ -0,0 +1,118 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CoinSelectorTest {
+    static final NetworkParameters params = NetworkParameters.unitTests();
+
+    private SpendableOutputs outputs;
+
+    @Before
+    public void setUp() throws Exception {
+        // Outputs of 3, 5, 2 and 4 coins, received in that order.
+        outputs = new SpendableOutputs();
+        Address address = new ECKey().toAddress(params);
+        Transaction tx = new Transaction(params);
+        for (int coins : new int[] { 3, 5, 2, 4 })
+            tx.addOutput(new TransactionOutput(params, tx, BitCoin.valueOf(coins, 0), address));
+        for (int i = 0; i < tx.outputs.size(); i++)
+            outputs.add(new TransactionOutPoint(params, i, tx), tx.outputs.get(i));
+    }
+
+    private static List<Long> coins(Iterable<TransactionOutput> selected) {
+        List<Long> result = new ArrayList<Long>();
+        for (TransactionOutput output : selected)
+            result.add(output.getNanocoins() / BitCoin.COIN.longValue());
+        return result;
+    }
+
+    private static List<Long> coins(long... values) {
+        List<Long> result = new ArrayList<Long>();
+        for (long value : values)
+            result.add(value);
+        return result;
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        assertEquals(4, outputs.size());
+        assertEquals(BitCoin.valueOf(14, 0).longValue(), outputs.getTotal());
+        assertEquals(coins(5, 4, 3, 2), coins(outputs.largestFirst()));
+        assertEquals(coins(3, 5, 2, 4), coins(outputs.oldestFirst()));
+        TransactionOutput five = outputs.largestFirst().iterator().next();
+        outputs.remove(new TransactionOutPoint(params, five.getIndex(), five.parentTransaction));
+        assertEquals(coins(4, 3, 2), coins(outputs.largestFirst()));
+        assertEquals(BitCoin.valueOf(9, 0).longValue(), outputs.getTotal());
+    }
+
+    @Test
+    public void testLargestFirst() throws Exception {
+        CoinSelector selector = new LargestFirstCoinSelector();
+        assertEquals(coins(5, 4), coins(selector.select(BitCoin.valueOf(6, 0).longValue(), outputs)));
+        assertNull(selector.select(BitCoin.valueOf(15, 0).longValue(), outputs));
+    }
+
+    @Test
+    public void testOldestFirst() throws Exception {
+        CoinSelector selector = new OldestFirstCoinSelector();
+        assertEquals(coins(3, 5), coins(selector.select(BitCoin.valueOf(6, 0).longValue(), outputs)));
+    }
+
+    @Test
+    public void testExactMatch() throws Exception {
+        CoinSelector selector = new ExactMatchCoinSelector();
+        assertEquals(coins(4, 2), coins(selector.select(BitCoin.valueOf(6, 0).longValue(), outputs)));
+        assertEquals(coins(5, 4, 2), coins(selector.select(BitCoin.valueOf(11, 0).longValue(), outputs)));
+        // No exact match, so it falls back to largest first.
+        assertEquals(coins(5, 4), coins(selector.select(BitCoin.valueOf(6, 50).longValue(), outputs)));
+        // Giving up straight away also falls back.
+        selector = new ExactMatchCoinSelector(new OldestFirstCoinSelector(), 1);
+        assertEquals(coins(3, 5), coins(selector.select(BitCoin.valueOf(6, 0).longValue(), outputs)));
+    }
+
+    @Test
+    public void testWalletUsesSelector() throws Exception {
+        ECKey key = new ECKey();
+        Wallet wallet = new Wallet(params);
+        wallet.addKey(key);
+        for (int coins : new int[] { 3, 5, 2, 4 }) {
+            Transaction tx = TestUtils.createFakeTx(params, Utils.toNanoCoins(coins, 0), key.toAddress(params));
+            wallet.receive(tx, null, BlockChain.NewBlockType.BEST_CHAIN);
+        }
+        Address to = new ECKey().toAddress(params);
+        // Largest first by default, with change.
+        Transaction send = wallet.createSend(to, Utils.toNanoCoins(6, 0));
+        assertEquals(2, send.inputs.size());
+        assertEquals(2, send.outputs.size());
+        // An exact match needs no change.
+        wallet.setCoinSelector(new ExactMatchCoinSelector());
+        send = wallet.createSend(to, Utils.toNanoCoins(6, 0));
+        assertEquals(2, send.inputs.size());
+        assertEquals(1, send.outputs.size());
+        assertNull(wallet.createSend(to, Utils.toNanoCoins(15, 0)));
+    }
+}
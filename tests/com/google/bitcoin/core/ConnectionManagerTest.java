@@ -0,0 +1,198 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+    static final NetworkParameters params = NetworkParameters.unitTests();
+
+    private ConnectionManager manager;
+    private ServerSocket server;
+    private BlockChain chain;
+
+    @Before
+    public void setUp() throws Exception {
+        chain = new BlockChain(params, new Wallet(params), new MemoryBlockStore(params));
+        manager = new ConnectionManager(params, 1, 1);
+        manager.start();
+        server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.stop();
+        server.close();
+    }
+
+    @Test
+    public void testConnectAndExchange() throws Exception {
+        Peer peer = new Peer(params, new PeerAddress(server.getInetAddress(), server.getLocalPort()), chain);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        PeerConnection conn = manager.connect(peer, new ConnectionManager.ConnectionListener() {
+            public void onConnected(Peer peer) {
+                connected.countDown();
+            }
+
+            public void onDisconnected(Peer peer, Exception cause) {
+                disconnected.countDown();
+            }
+        });
+        assertTrue(conn.toString().startsWith("[127.0.0.1]:" + server.getLocalPort() + " "));
+
+        // Play the remote node: answer the handshake, then a getdata for a block.
+        Socket socket = server.accept();
+        BitcoinSerializer serializer = new BitcoinSerializer(params, false);
+        assertTrue(serializer.deserialize(socket.getInputStream()) instanceof VersionMessage);
+        VersionMessage version = new VersionMessage(params, 1);
+        version.localServices = VersionMessage.NODE_NETWORK;
+        serializer.serialize(version, socket.getOutputStream());
+        serializer.serialize(new VersionAck(), socket.getOutputStream());
+        assertTrue(serializer.deserialize(socket.getInputStream()) instanceof VersionAck);
+        serializer.useChecksumming(true);
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+
+        Block block = params.genesisBlock.createNextBlock(new ECKey().toAddress(params));
+        Future<Block> future = peer.getBlock(block.getHash());
+        GetDataMessage getdata = (GetDataMessage) serializer.deserialize(socket.getInputStream());
+        assertEquals(block.getHash(), getdata.getItems().get(0).hash);
+        serializer.serialize(block, socket.getOutputStream());
+        assertEquals(block.getHash(), future.get(10, TimeUnit.SECONDS).getHash());
+
+        // The remote end going away is reported.
+        socket.close();
+        assertTrue(disconnected.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testStopsReadingWhenChainFallsBehind() throws Exception {
+        Peer peer = new Peer(params, new PeerAddress(server.getInetAddress(), server.getLocalPort()), chain);
+        final CountDownLatch connected = new CountDownLatch(1);
+        manager.connect(peer, new ConnectionManager.ConnectionListener() {
+            public void onConnected(Peer peer) {
+                connected.countDown();
+            }
+
+            public void onDisconnected(Peer peer, Exception cause) {
+            }
+        });
+        final Socket socket = server.accept();
+        BitcoinSerializer serializer = new BitcoinSerializer(params, false);
+        serializer.deserialize(socket.getInputStream());
+        VersionMessage version = new VersionMessage(params, 1);
+        version.localServices = VersionMessage.NODE_NETWORK;
+        serializer.serialize(version, socket.getOutputStream());
+        serializer.serialize(new VersionAck(), socket.getOutputStream());
+        serializer.deserialize(socket.getInputStream());
+        serializer.useChecksumming(true);
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+
+        // Flood the peer with blocks whilst the chain is locked and can't connect any of them. Reading from the socket
+        // must stop, leaving the remote end stuck writing once the socket buffers are full. The chain would take all
+        // of them, so it is the peer's own limit that does this.
+        chain.setMaxPendingBlocks(Integer.MAX_VALUE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        serializer.serialize(params.genesisBlock.createNextBlock(new ECKey().toAddress(params)), bytes);
+        final byte[] block = bytes.toByteArray();
+        final AtomicLong sent = new AtomicLong();
+        Thread flooder = new Thread() {
+            public void run() {
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    while (true) {
+                        out.write(block);
+                        sent.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // Socket was closed at the end of the test.
+                }
+            }
+        };
+        flooder.setDaemon(true);
+        synchronized (chain) {
+            flooder.start();
+            assertTrue(waitForStall(sent, 30000));
+            // Still stuck a while later, rather than just slow.
+            long stalledAt = sent.get();
+            Thread.sleep(1000);
+            assertEquals(stalledAt, sent.get());
+        }
+        // Once the chain catches up, reading carries on.
+        long stalledAt = sent.get();
+        for (int i = 0; i < 100 && sent.get() == stalledAt; i++)
+            Thread.sleep(100);
+        assertTrue(sent.get() > stalledAt);
+        socket.close();
+        flooder.join(10000);
+    }
+
+    // Waits until the count stops going up for half a second. Returns false if it kept going for the whole timeout.
+    private static boolean waitForStall(AtomicLong count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long last = count.get();
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(500);
+            long now = count.get();
+            if (now == last)
+                return true;
+            last = now;
+        }
+        return false;
+    }
+
+    @Test
+    public void testRejectsClientModeNode() throws Exception {
+        Peer peer = new Peer(params, new PeerAddress(server.getInetAddress(), server.getLocalPort()), chain);
+        final Exception[] result = new Exception[1];
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        manager.connect(peer, new ConnectionManager.ConnectionListener() {
+            public void onConnected(Peer peer) {
+                fail();
+            }
+
+            public void onDisconnected(Peer peer, Exception cause) {
+                result[0] = cause;
+                disconnected.countDown();
+            }
+        });
+        Socket socket = server.accept();
+        BitcoinSerializer serializer = new BitcoinSerializer(params, false);
+        serializer.deserialize(socket.getInputStream());
+        // No NODE_NETWORK service, so it has no block chain to give us.
+        serializer.serialize(new VersionMessage(params, 1), socket.getOutputStream());
+        assertTrue(disconnected.await(10, TimeUnit.SECONDS));
+        assertTrue(result[0] instanceof ProtocolException);
+        socket.close();
+    }
+}
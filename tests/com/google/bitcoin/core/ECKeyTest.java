@@ -16,12 +16,15 @@
 
 package com.google.bitcoin.core;
 
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Test;
 
 import java.math.BigInteger;
 
 import static com.google.bitcoin.core.Utils.*;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class ECKeyTest {
@@ -68,4 +71,26 @@ public class ECKeyTest {
         assertTrue(roundtripKey.verify(message, decodedKey.sign(message)));
         assertTrue(decodedKey.verify(message, roundtripKey.sign(message)));
     }
+
+    @Test
+    public void testFixedBaseMultiply() {
+        X9ECParameters params = SECNamedCurves.getByName("secp256k1");
+        FixedBaseMultiplier multiplier = new FixedBaseMultiplier(params.getG(), params.getN().bitLength());
+        BigInteger[] scalars = {
+            BigInteger.ONE, BigInteger.valueOf(15), BigInteger.valueOf(16), BigInteger.valueOf(0x1234567),
+            params.getN().subtract(BigInteger.ONE),
+            new BigInteger(1, Hex.decode("180cb41c7c600be951b5d3d0a7334acc7506173875834f7a6c4c786a28fcbb19"))
+        };
+        for (BigInteger k : scalars)
+            assertEquals(params.getG().multiply(k), multiplier.multiply(k));
+    }
+
+    @Test
+    public void testPublicKeyDerivation() {
+        // The public key derived from a known private key is unchanged.
+        ECKey key = new ECKey(new BigInteger("180cb41c7c600be951b5d3d0a7334acc7506173875834f7a6c4c786a28fcbb19", 16));
+        assertEquals("0401de173aa944eacf7e44e5073baca93fb34fe4b7897a1c82c92dfdc8a1f75ef5" +
+                     "8cd1b06e8052096980cb6e1ad6d3df143c34b3d7394bae2782a4df570554c2fb",
+                     Utils.bytesToHexString(key.getPubKey()));
+    }
 }
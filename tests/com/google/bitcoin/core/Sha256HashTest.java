@@ -0,0 +1,57 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Sha256HashTest {
+    private static final String HEX = "00000000d1145790a8694403d4063f323d499e655c83426834d4ce2f8dd4a2ee";
+
+    @Test
+    public void testReadFromBuffer() throws Exception {
+        Sha256Hash hash = new Sha256Hash(HEX);
+        byte[] buf = new byte[40];
+        assertEquals(36, hash.writeReversed(buf, 4));
+        assertTrue(Arrays.equals(Utils.reverseBytes(hash.getBytes()), new Sha256Hash(buf, 4, false).getBytes()));
+        Sha256Hash read = new Sha256Hash(buf, 4, true);
+        assertEquals(hash, read);
+        assertEquals(HEX, read.toString());
+        assertEquals(hash, new Sha256Hash(hash.getBytes(), 0, false));
+    }
+
+    @Test
+    public void testEquality() throws Exception {
+        Sha256Hash a = new Sha256Hash(HEX);
+        Sha256Hash b = new Sha256Hash(HEX);
+        assertEquals(Arrays.hashCode(a.getBytes()), a.hashCode());
+        assertEquals(a.hashCode(), b.hashCode());
+        assertEquals(a, b);
+        // Differing only in the last byte, after both hash codes have been cached.
+        byte[] bytes = Utils.reverseBytes(Utils.reverseBytes(a.getBytes()));
+        bytes[31] ^= 1;
+        Sha256Hash c = new Sha256Hash(bytes);
+        c.hashCode();
+        assertFalse(a.equals(c));
+        assertFalse(c.equals(a));
+        assertFalse(a.equals(Sha256Hash.ZERO_HASH));
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+public class Sha256Test {
+    @Test
+    public void testDoubleDigestMany() throws Exception {
+        byte[] input = new byte[5 * 100];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) i;
+        // Hash five 80 byte inputs at a stride of 100 bytes, leaving a gap before the output.
+        byte[] out = new byte[8 + 5 * 32];
+        Sha256.doubleDigestMany(input, 10, 80, 100, 5, out, 8);
+        for (int i = 0; i < 5; i++) {
+            byte[] expected = Utils.doubleDigest(input, 10 + i * 100, 80);
+            byte[] actual = new byte[32];
+            System.arraycopy(out, 8 + i * 32, actual, 0, 32);
+            assertTrue(Arrays.equals(expected, actual));
+        }
+    }
+
+    @Test
+    public void testDoubleDigest() throws Exception {
+        // SHA256(SHA256("hello")), a well known test vector.
+        byte[] out = new byte[34];
+        Sha256.doubleDigest("hello".getBytes("US-ASCII"), 0, 5, out, 2);
+        byte[] digest = new byte[32];
+        System.arraycopy(out, 2, digest, 0, 32);
+        assertTrue(Arrays.equals(Utils.doubleDigest("hello".getBytes("US-ASCII")), digest));
+        assertTrue(Utils.bytesToHexString(digest).equals(
+                "9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50"));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SignatureVerifierTest {
+    @Test
+    public void testVerifyAll() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(3, 2);
+        try {
+            ECKey[] keys = { new ECKey(), new ECKey(), new ECKey() };
+            List<SignatureVerifier.Request> requests = new ArrayList<SignatureVerifier.Request>();
+            List<Boolean> expected = new ArrayList<Boolean>();
+            for (int i = 0; i < 40; i++) {
+                byte[] hash = Utils.doubleDigest(new byte[] { (byte) i });
+                ECKey key = keys[i % keys.length];
+                byte[] sig = key.sign(hash);
+                // Every fifth signature is checked against the wrong key.
+                boolean good = i % 5 != 0;
+                ECKey signer = good ? key : keys[(i + 1) % keys.length];
+                requests.add(new SignatureVerifier.Request(hash, sig, signer.getPubKey()));
+                expected.add(good);
+            }
+            boolean[] results = verifier.verifyAll(requests);
+            assertEquals(requests.size(), results.length);
+            for (int i = 0; i < results.length; i++)
+                assertEquals(expected.get(i), results[i]);
+        } finally {
+            verifier.shutdown();
+        }
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(1, 10);
+        ECKey key = new ECKey();
+        byte[] hash = new byte[32];
+        byte[] sig = key.sign(hash);
+        assertTrue(verifier.verify(hash, sig, key.getPubKey()));
+        // Trailing bytes such as the hash type are ignored, like the ASN.1 parser does.
+        byte[] withHashType = new byte[sig.length + 1];
+        System.arraycopy(sig, 0, withHashType, 0, sig.length);
+        withHashType[sig.length] = 1;
+        assertTrue(verifier.verify(hash, withHashType, key.getPubKey()));
+        byte[] truncated = new byte[sig.length - 1];
+        System.arraycopy(sig, 0, truncated, 0, truncated.length);
+        assertFalse(verifier.verify(hash, truncated, key.getPubKey()));
+        assertFalse(verifier.verify(hash, sig, new byte[] { 4, 1, 2, 3 }));
+    }
+}
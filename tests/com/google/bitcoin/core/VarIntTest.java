@@ -48,4 +48,14 @@ public class VarIntTest extends TestCase {
         byte[] bytes = a.encode();
         assertEquals(0xCAFEBABEDEADBEEFL, new VarInt(bytes, 0).value);
     }
+
+    public void testEncodeInto() throws Exception {
+        long[] values = { 0, 252, 253, 65535, 65536, 0xFFFFFFFFL, 0x100000000L };
+        for (long value : values) {
+            byte[] buf = new byte[10];
+            int end = VarInt.encodeInto(value, buf, 1);
+            assertEquals(1 + VarInt.sizeOf(value), end);
+            assertEquals(value, new VarInt(buf, 1).value);
+        }
+    }
 }
@@ -19,17 +19,22 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.*;
 import java.math.BigInteger;
+import java.util.Arrays;
 
 import static com.google.bitcoin.core.TestUtils.createFakeBlock;
 import static com.google.bitcoin.core.TestUtils.createFakeTx;
 import static com.google.bitcoin.core.Utils.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class WalletTest {
     static final NetworkParameters params = NetworkParameters.unitTests();
@@ -48,6 +53,12 @@ public class WalletTest {
         blockStore = new MemoryBlockStore(params);
     }
 
+    @After
+    public void tearDown() throws Exception {
+        // The balances kept up to date as the test went along must match a recalculation from scratch.
+        assertTrue(wallet.isConsistent());
+    }
+
     @Test
     public void basicSpending() throws Exception {
         // We'll set up a wallet that receives a coin, then sends a coin of lesser value and keeps the change.
@@ -141,6 +152,160 @@ public class WalletTest {
     // with the same key twice gives two different outputs. So we cannot prove bit-for-bit compatibility in this test
     // suite.
 
+    @Test
+    public void serialization() throws Exception {
+        BigInteger v1 = Utils.toNanoCoins(1, 0);
+        Transaction t1 = createFakeTx(params, v1, myAddress);
+        wallet.receive(t1, null, BlockChain.NewBlockType.BEST_CHAIN);
+        // Output values are held as longs but still written out as BigIntegers, so older wallet files load.
+        assertEquals(BigInteger.class,
+                     ObjectStreamClass.lookup(TransactionOutput.class).getField("value").getType());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).writeObject(wallet);
+        Wallet wallet2 = (Wallet) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        assertEquals(v1, wallet2.getBalance());
+        assertEquals(BitCoin.COIN, wallet2.getBalanceAmount(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void compactSerialization() throws Exception {
+        // Coins received in a block, some of them sent on in a pending transaction, and a transaction on a side chain.
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        StoredBlock b1 = createFakeBlock(params, blockStore, t1).storedBlock;
+        wallet.receive(t1, b1, BlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.confirmSend(send);
+        Transaction t2 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        wallet.receive(t2, null, BlockChain.NewBlockType.SIDE_CHAIN);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        wallet.saveToCompactStream(bos);
+        byte[] compact = bos.toByteArray();
+        bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).writeObject(wallet);
+        assertTrue(compact.length < bos.size() / 4);
+
+        Wallet wallet2 = Wallet.loadFromStream(new ByteArrayInputStream(compact));
+        assertEquals(1, wallet2.keychain.size());
+        assertTrue(Arrays.equals(myKey.getPubKey(), wallet2.keychain.get(0).getPubKey()));
+        assertEquals(BigInteger.ZERO, wallet2.getBalance());
+        assertEquals(toNanoCoins(0, 90), wallet2.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(wallet.unspent.keySet(), wallet2.unspent.keySet());
+        assertEquals(wallet.pending.keySet(), wallet2.pending.keySet());
+        assertEquals(wallet.inactive.keySet(), wallet2.inactive.keySet());
+        assertEquals(1, wallet2.inactive.size());
+        Transaction t1copy = wallet2.unspent.get(t1.getHash());
+        assertEquals(t1.getAppearsIn(), t1copy.getAppearsIn());
+        // The pending transaction is connected to the output it spends, in both directions.
+        Transaction sendCopy = wallet2.pending.get(send.getHash());
+        assertTrue(t1copy.outputs.get(0).getSpentBy() == sendCopy.inputs.get(0));
+        assertTrue(sendCopy.inputs.get(0).outpoint.fromTx == t1copy);
+        // And it goes on working: the send confirms and the change becomes available.
+        StoredBlock b2 = createFakeBlock(params, blockStore, send).storedBlock;
+        wallet2.receive(sendCopy, b2, BlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(0, 90), wallet2.getBalance());
+    }
+
+    @Test
+    public void compactSerializationChecks() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        wallet.saveToCompactStream(bos);
+        byte[] compact = bos.toByteArray();
+        // The caller can say which network the wallet is for, and it must be the one it was saved on.
+        assertEquals(1, Wallet.loadFromStream(new ByteArrayInputStream(compact), params).keychain.size());
+        try {
+            Wallet.loadFromStream(new ByteArrayInputStream(compact), NetworkParameters.testNet());
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+
+        // A file claiming a huge number of blocks runs out of data rather than memory.
+        bos = new ByteArrayOutputStream();
+        bos.write(WalletSerializer.MAGIC);
+        Utils.uint32ToByteStreamLE(WalletSerializer.VERSION, bos);
+        bos.write(params.genesisBlock.getHash().getBytes());
+        bos.write(new VarInt(0).encode());
+        bos.write(new VarInt(Integer.MAX_VALUE).encode());
+        try {
+            Wallet.loadFromStream(new ByteArrayInputStream(bos.toByteArray()));
+            fail();
+        } catch (EOFException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void keyLookup() throws Exception {
+        ECKey[] keys = new ECKey[20];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new ECKey();
+            wallet.addKey(keys[i]);
+        }
+        // Keys added to the public keychain directly are found too.
+        ECKey direct = new ECKey();
+        wallet.keychain.add(direct);
+        for (ECKey key : keys) {
+            assertTrue(key == wallet.findKeyFromPubHash(key.getPubKeyHash()));
+            assertTrue(key == wallet.findKeyFromPubKey(key.getPubKey()));
+        }
+        assertTrue(direct == wallet.findKeyFromPubKey(direct.getPubKey()));
+        assertFalse(wallet.isPubKeyHashMine(new ECKey().getPubKeyHash()));
+        // The indexes are rebuilt when the wallet is loaded.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).writeObject(wallet);
+        Wallet wallet2 = (Wallet) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        assertTrue(wallet2.isPubKeyHashMine(keys[7].getPubKeyHash()));
+        assertTrue(wallet2.isPubKeyMine(direct.getPubKey()));
+    }
+
+    @Test
+    public void balanceAfterAddingKey() throws Exception {
+        // A transaction that spends to a key of ours and to one we don't have yet.
+        ECKey later = new ECKey();
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        t1.addOutput(new TransactionOutput(params, t1, toNanoCoins(2, 0), later.toAddress(params)));
+        wallet.receive(t1, null, BlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        // The balance is kept up to date as coins are sent ...
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 10));
+        wallet.confirmSend(send);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(toNanoCoins(0, 90), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // ... and worked out again when a key is added that owns coins we already know about.
+        wallet.addKey(later);
+        assertEquals(toNanoCoins(2, 0), wallet.getBalance());
+        assertEquals(toNanoCoins(2, 90), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test
+    public void spendableOutputs() throws Exception {
+        // Two transactions that each pay us and somebody else.
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        t1.addOutput(new TransactionOutput(params, t1, toNanoCoins(5, 0), new ECKey().toAddress(params)));
+        Transaction t2 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        t2.addOutput(new TransactionOutput(params, t2, toNanoCoins(5, 0), new ECKey().toAddress(params)));
+        wallet.receive(t1, null, BlockChain.NewBlockType.BEST_CHAIN);
+        wallet.receive(t2, null, BlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.isConsistent());
+        // Only our outputs are gathered up to pay for a send.
+        Transaction send1 = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(2, 50));
+        assertEquals(2, send1.inputs.size());
+        for (TransactionInput input : send1.inputs)
+            assertEquals(0, input.outpoint.index);
+        // A spend of our coins we didn't make ourselves takes them out of the spendable outputs too.
+        Transaction t3 = new Transaction(params);
+        t3.addInput(t2.outputs.get(0));
+        t3.addOutput(new TransactionOutput(params, t3, toNanoCoins(2, 0), new ECKey().toAddress(params)));
+        wallet.receive(t3, null, BlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.isConsistent());
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance());
+        assertNull(wallet.createSend(new ECKey().toAddress(params), toNanoCoins(1, 50)));
+        Transaction send2 = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 50));
+        assertEquals(1, send2.inputs.size());
+        assertEquals(new TransactionOutPoint(params, 0, t1), send2.inputs.get(0).outpoint);
+    }
+
     @Test
     public void blockChainCatchup() throws Exception {
         Transaction tx1 = createFakeTx(params, Utils.toNanoCoins(1, 0), myAddress);
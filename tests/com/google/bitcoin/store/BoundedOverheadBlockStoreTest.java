@@ -18,11 +18,16 @@ package com.google.bitcoin.store;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.store.BoundedOverheadBlockStore;
 import org.junit.Test;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class BoundedOverheadBlockStoreTest {
     @Test
@@ -30,6 +35,8 @@ public class BoundedOverheadBlockStoreTest {
         File temp = File.createTempFile("bitcoinj-test", null, null);
         System.out.println(temp.getAbsolutePath());
         temp.deleteOnExit();
+        new File(temp.getPath() + ".index").deleteOnExit();
+        new File(temp.getPath() + ".heights").deleteOnExit();
 
         NetworkParameters params = NetworkParameters.unitTests();
         Address to = new ECKey().toAddress(params);
@@ -49,4 +56,117 @@ public class BoundedOverheadBlockStoreTest {
         // Check the chain head was stored correctly also.
         assertEquals(b1, store.getChainHead());
     }
+
+    @Test
+    public void testIndex() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        File index = new File(temp.getPath() + ".index");
+        index.deleteOnExit();
+        new File(temp.getPath() + ".heights").deleteOnExit();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        // Store enough blocks to force the index to grow at least once.
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 2100; i++) {
+            StoredBlock b = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(b);
+            blocks.add(b);
+            prev = b;
+        }
+        store.setChainHead(prev);
+
+        // Reopen so everything comes off the disk via the index rather than the cache.
+        store = new BoundedOverheadBlockStore(params, temp);
+        for (StoredBlock b : blocks)
+            assertEquals(b, store.get(b.getHeader().getHash()));
+        assertNull(store.get(new Sha256Hash("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa")));
+
+        // A missing index is rebuilt from the records.
+        assertTrue(index.delete());
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertTrue(index.exists());
+        assertEquals(prev, store.getChainHead());
+        assertEquals(blocks.get(1000), store.get(blocks.get(1000).getHeader().getHash()));
+    }
+
+    @Test
+    public void testGetByHeight() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        new File(temp.getPath() + ".index").deleteOnExit();
+        File heights = new File(temp.getPath() + ".heights");
+        heights.deleteOnExit();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = genesis;
+        for (int i = 0; i < 10; i++) {
+            StoredBlock b = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(b);
+            store.setChainHead(b);
+            blocks.add(b);
+            prev = b;
+        }
+        assertEquals(genesis, store.getByHeight(0));
+        assertEquals(blocks.get(4), store.getByHeight(5));
+        assertEquals(prev, store.getByHeight(10));
+        assertNull(store.getByHeight(11));
+        assertNull(store.getByHeight(-1));
+
+        // Fork off a longer chain from height 5 and make it the best chain.
+        StoredBlock fork = blocks.get(4);
+        for (int i = 0; i < 7; i++) {
+            fork = fork.build(fork.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(fork);
+        }
+        store.setChainHead(fork);
+        assertEquals(blocks.get(4), store.getByHeight(5));
+        assertEquals(fork.getHeader().getPrevBlockHash(), store.getByHeight(11).getHeader().getHash());
+        assertEquals(fork, store.getByHeight(12));
+
+        // Switching back to the shorter chain truncates the index.
+        store.setChainHead(prev);
+        assertEquals(blocks.get(5), store.getByHeight(6));
+        assertNull(store.getByHeight(11));
+
+        // The index survives a restart and is rebuilt if it goes missing.
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(blocks.get(7), store.getByHeight(8));
+        assertTrue(heights.delete());
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(blocks.get(7), store.getByHeight(8));
+        assertEquals(genesis, store.getByHeight(0));
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+        new File(temp.getPath() + ".index").deleteOnExit();
+        new File(temp.getPath() + ".heights").deleteOnExit();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        BoundedOverheadBlockStore store = new BoundedOverheadBlockStore(params, temp);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 20; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        store.putAll(blocks);
+        store.setChainHead(prev);
+        // Check they all made it to disk.
+        store = new BoundedOverheadBlockStore(params, temp);
+        assertEquals(prev, store.getChainHead());
+        for (StoredBlock b : blocks)
+            assertEquals(b, store.get(b.getHeader().getHash()));
+    }
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import org.junit.Test;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MappedBlockStoreTest {
+    @Test
+    public void testStorage() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        MappedBlockStore store = new MappedBlockStore(params, temp);
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.genesisBlock, genesis.getHeader());
+
+        // Build a new block.
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        // Check we can get it back out again if we rebuild the store object.
+        store = new MappedBlockStore(params, temp);
+        StoredBlock b2 = store.get(b1.getHeader().getHash());
+        assertEquals(b1, b2);
+        // Check the chain head was stored correctly also.
+        assertEquals(b1, store.getChainHead());
+    }
+
+    @Test
+    public void testManyBlocks() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        MappedBlockStore store = new MappedBlockStore(params, temp);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 500; i++) {
+            StoredBlock b = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(b);
+            blocks.add(b);
+            prev = b;
+        }
+        store.setChainHead(prev);
+
+        // The hash map is rebuilt from the mapped records on open.
+        store = new MappedBlockStore(params, temp);
+        assertEquals(prev, store.getChainHead());
+        for (StoredBlock b : blocks)
+            assertEquals(b, store.get(b.getHeader().getHash()));
+        // So is the height index.
+        assertEquals(blocks.get(249), store.getByHeight(250));
+        assertNull(store.getByHeight(501));
+        assertNull(store.get(new Sha256Hash("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa")));
+    }
+
+    @Test
+    public void testRecreatesCorruptStore() throws Exception {
+        File temp = File.createTempFile("bitcoinj-test", null, null);
+        temp.deleteOnExit();
+
+        NetworkParameters params = NetworkParameters.unitTests();
+        Address to = new ECKey().toAddress(params);
+        MappedBlockStore store = new MappedBlockStore(params, temp);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        // Point the chain head at a block that isn't there. Loading gets as far as mapping the records first.
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        raf.seek(1);
+        raf.write(new byte[32]);
+        raf.close();
+        // The store starts again from the genesis block in the same file.
+        store = new MappedBlockStore(params, temp);
+        assertEquals(genesis, store.getChainHead());
+        assertNull(store.get(b1.getHeader().getHash()));
+        store.put(b1);
+        store.setChainHead(b1);
+        store = new MappedBlockStore(params, temp);
+        assertEquals(b1, store.getChainHead());
+    }
+}